@@ -0,0 +1,25 @@
+package benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Runs JMH with the GC profiler switched on, so every result comes with its allocation rate.
+ * Passing any -prof option replaces it.
+ */
+public final class BenchmarkMain
+{
+    private BenchmarkMain()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (!Arrays.asList(args).contains("-prof"))
+        {
+            args = Arrays.copyOf(args, args.length + 2);
+            args[args.length - 2] = "-prof";
+            args[args.length - 1] = "gc";
+        }
+        org.openjdk.jmh.Main.main(args);
+    }
+}
@@ -0,0 +1,109 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stages of the experiment: building the almost complete tree, folding S into forearms,
+ * matching identical subtrees, and the three algorithms end to end.
+ * <p>
+ * Folding and the algorithms rotate S as they go, so every invocation gets a freshly generated
+ * S, built outside the timed region. T is never changed, so it is built once per trial.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xmx8g"})
+public class PipelineBenchmarks
+{
+    @State(Scope.Thread)
+    public static class Keys
+    {
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int n;
+
+        int[] keys;
+
+        @Setup
+        public void setup()
+        {
+            keys = IntStream.range(0, n).toArray();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Trees
+    {
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int n;
+
+        @Param({"PERTURBED", "UNIFORM", "RANDOM_INSERTION", "LEFT_VINE", "RIGHT_VINE", "ZIG_ZAG", "HALF_IDENTICAL"})
+        public String source;
+
+        Object S;
+        Object T;
+        private long seed = 0;
+
+        @Setup(Level.Trial)
+        public void buildT()
+        {
+            T = Project.makeAlmostCompleteBST(IntStream.range(0, n).toArray());
+        }
+
+        @Setup(Level.Invocation)
+        public void generateS()
+        {
+            S = Project.generate(source, n, seed++);
+        }
+    }
+
+    @Benchmark
+    public Object makeAlmostCompleteBST(Keys keys)
+    {
+        return Project.makeAlmostCompleteBST(keys.keys);
+    }
+
+    @Benchmark
+    public Object makeForearms(Trees trees)
+    {
+        return Project.makeForearms(trees.S);
+    }
+
+    @Benchmark
+    public Object findMaximalIdenticalSubtrees(Trees trees)
+    {
+        return Project.findMaximalIdenticalSubtrees(trees.S, trees.T);
+    }
+
+    @Benchmark
+    public Object A1(Trees trees)
+    {
+        return Project.A1(trees.S, trees.T);
+    }
+
+    @Benchmark
+    public Object A2(Trees trees)
+    {
+        return Project.A2(trees.S, trees.T);
+    }
+
+    @Benchmark
+    public Object A3(Trees trees)
+    {
+        return Project.A3(trees.S, trees.T);
+    }
+}
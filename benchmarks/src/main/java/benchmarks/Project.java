@@ -0,0 +1,288 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Handles on the project's classes. They live in the default package, which can't be imported
+ * from a named package (and JMH refuses to generate benchmarks in the default package), so we
+ * reach them through method handles. The handles are static finals, so the JIT inlines them and
+ * the benchmarks measure the project's code rather than the indirection.
+ * <p>
+ * Trees and nodes are passed around as plain Objects.
+ */
+final class Project
+{
+    private static final MethodHandle MAKE_ALMOST_COMPLETE;
+    private static final MethodHandle GENERATE;
+    private static final MethodHandle SOURCE_VALUE_OF;
+    private static final MethodHandle ROOT;
+    private static final MethodHandle LEFT;
+    private static final MethodHandle RIGHT;
+    private static final MethodHandle ROTATE_LEFT;
+    private static final MethodHandle ROTATE_RIGHT;
+    private static final MethodHandle SELECT;
+    private static final MethodHandle SEARCH;
+    private static final MethodHandle INDEX_KEYS;
+    private static final MethodHandle MAKE_FOREARMS;
+    private static final MethodHandle FIND_MAXIMAL_IDENTICAL_SUBTREES;
+    private static final MethodHandle A1;
+    private static final MethodHandle A2;
+    private static final MethodHandle A3;
+
+    static
+    {
+        try
+        {
+            final Class<?> algorithms = Class.forName("BalanceViaRotation");
+            final Class<?> bst = Class.forName("BST");
+            final Class<?> node = Class.forName("BSTNode");
+            final Class<?> tree = Class.forName("RotationTree");
+            final Class<?> source = Class.forName("TreeGenerators$Source");
+            final Class<?> statistic = Class.forName("BalanceViaRotation$Statistic");
+            final Class<?> log = Class.forName("RotationLog");
+
+            MAKE_ALMOST_COMPLETE = find(algorithms, "makeAlmostCompleteBST", bst, int[].class);
+            GENERATE = virtual(source, "generate", bst, int.class, SplittableRandom.class);
+            SOURCE_VALUE_OF = find(source, "valueOf", source, String.class);
+            ROOT = virtual(bst, "root", node);
+            LEFT = virtual(bst, "left", node, node);
+            RIGHT = virtual(bst, "right", node, node);
+            ROTATE_LEFT = virtual(bst, "rotateLeft", node, node);
+            ROTATE_RIGHT = virtual(bst, "rotateRight", node, node);
+            SELECT = virtual(bst, "select", Optional.class, int.class);
+            SEARCH = virtual(bst, "search", Optional.class, int.class);
+            INDEX_KEYS = virtual(bst, "indexKeys", void.class);
+            MAKE_FOREARMS = find(algorithms, "makeForearms", log, tree);
+            FIND_MAXIMAL_IDENTICAL_SUBTREES = find(algorithms, "findMaximalIdenticalSubtrees", Set.class, tree, tree);
+            A1 = find(algorithms, "A1", statistic, tree, tree);
+            A2 = find(algorithms, "A2", statistic, tree, tree);
+            A3 = find(algorithms, "A3", statistic, tree, tree);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Project()
+    {
+    }
+
+    /**
+     * Find a static method, and erase every reference type in its signature to Object.
+     */
+    private static MethodHandle find(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters)
+            throws ReflectiveOperationException
+    {
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+        MethodHandle handle = lookup.findStatic(owner, name, MethodType.methodType(returnType, parameters));
+        return handle.asType(handle.type().erase());
+    }
+
+    /**
+     * Find an instance method, and erase every reference type in its signature to Object.
+     */
+    private static MethodHandle virtual(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters)
+            throws ReflectiveOperationException
+    {
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+        MethodHandle handle = lookup.findVirtual(owner, name, MethodType.methodType(returnType, parameters));
+        return handle.asType(handle.type().erase());
+    }
+
+    private static RuntimeException rethrow(Throwable t)
+    {
+        if (t instanceof RuntimeException e) return e;
+        if (t instanceof Error e) throw e;
+        return new IllegalStateException(t);
+    }
+
+    static Object makeAlmostCompleteBST(int[] sortedKeys)
+    {
+        try
+        {
+            return (Object) MAKE_ALMOST_COMPLETE.invokeExact((Object) sortedKeys);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Generate a source tree of n nodes, where source names a TreeGenerators.Source.
+     */
+    static Object generate(String source, int n, long seed)
+    {
+        try
+        {
+            Object s = (Object) SOURCE_VALUE_OF.invokeExact((Object) source);
+            return (Object) GENERATE.invokeExact(s, n, (Object) new SplittableRandom(seed));
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object root(Object tree)
+    {
+        try
+        {
+            return (Object) ROOT.invokeExact(tree);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object left(Object tree, Object node)
+    {
+        try
+        {
+            return (Object) LEFT.invokeExact(tree, node);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object right(Object tree, Object node)
+    {
+        try
+        {
+            return (Object) RIGHT.invokeExact(tree, node);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object rotateLeft(Object tree, Object node)
+    {
+        try
+        {
+            return (Object) ROTATE_LEFT.invokeExact(tree, node);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object rotateRight(Object tree, Object node)
+    {
+        try
+        {
+            return (Object) ROTATE_RIGHT.invokeExact(tree, node);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object select(Object tree, int rank)
+    {
+        try
+        {
+            return (Object) SELECT.invokeExact(tree, rank);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object search(Object tree, int key)
+    {
+        try
+        {
+            return (Object) SEARCH.invokeExact(tree, key);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static void indexKeys(Object tree)
+    {
+        try
+        {
+            INDEX_KEYS.invokeExact(tree);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object makeForearms(Object tree)
+    {
+        try
+        {
+            return (Object) MAKE_FOREARMS.invokeExact(tree);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    static Object findMaximalIdenticalSubtrees(Object s, Object t)
+    {
+        try
+        {
+            return (Object) FIND_MAXIMAL_IDENTICAL_SUBTREES.invokeExact(s, t);
+        }
+        catch (Throwable t2)
+        {
+            throw rethrow(t2);
+        }
+    }
+
+    static Object A1(Object s, Object t)
+    {
+        try
+        {
+            return (Object) A1.invokeExact(s, t);
+        }
+        catch (Throwable t2)
+        {
+            throw rethrow(t2);
+        }
+    }
+
+    static Object A2(Object s, Object t)
+    {
+        try
+        {
+            return (Object) A2.invokeExact(s, t);
+        }
+        catch (Throwable t2)
+        {
+            throw rethrow(t2);
+        }
+    }
+
+    static Object A3(Object s, Object t)
+    {
+        try
+        {
+            return (Object) A3.invokeExact(s, t);
+        }
+        catch (Throwable t2)
+        {
+            throw rethrow(t2);
+        }
+    }
+}
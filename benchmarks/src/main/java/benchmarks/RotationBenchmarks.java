@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The primitives everything else is built from: a single rotation, and finding a node by rank
+ * or by key. None of these change the shape of the tree, so one tree serves the whole trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xmx8g"})
+public class RotationBenchmarks
+{
+    // how many ranks and keys to cycle through, so the lookups aren't all the same
+    private static final int PROBES = 1 << 10;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int n;
+
+    @Param({"PERTURBED", "UNIFORM", "RANDOM_INSERTION", "LEFT_VINE", "RIGHT_VINE", "ZIG_ZAG", "HALF_IDENTICAL"})
+    public String source;
+
+    private Object tree;
+    private Object pivot;
+    private boolean pivotHasRightChild;
+    private Object indexedTree;
+    private final int[] probes = new int[PROBES];
+    private int next = 0;
+
+    @Setup
+    public void setup()
+    {
+        tree = Project.generate(source, n, 42);
+        pivot = Project.root(tree);
+        pivotHasRightChild = Project.right(tree, pivot) != null;
+
+        indexedTree = Project.generate(source, n, 42);
+        Project.indexKeys(indexedTree);
+
+        SplittableRandom random = new SplittableRandom(43);
+        for (int i = 0; i < PROBES; i++) probes[i] = random.nextInt(n);
+    }
+
+    /**
+     * Rotate the root's edge to one of its children and back again, so the tree ends up as it started.
+     */
+    @Benchmark
+    public Object rotateAndBack()
+    {
+        if (pivotHasRightChild)
+        {
+            return Project.rotateRight(tree, Project.rotateLeft(tree, pivot));
+        }
+        return Project.rotateLeft(tree, Project.rotateRight(tree, pivot));
+    }
+
+    @Benchmark
+    public Object select()
+    {
+        return Project.select(tree, nextProbe());
+    }
+
+    /**
+     * Search by walking down from the root.
+     */
+    @Benchmark
+    public Object search()
+    {
+        return Project.search(tree, nextProbe());
+    }
+
+    /**
+     * Search with the key index, which is a single probe.
+     */
+    @Benchmark
+    public Object searchIndexed()
+    {
+        return Project.search(indexedTree, nextProbe());
+    }
+
+    private int nextProbe()
+    {
+        next = (next + 1) & (PROBES - 1);
+        return probes[next];
+    }
+}
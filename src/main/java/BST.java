@@ -5,18 +5,37 @@ import java.util.function.Consumer;
  * A non-empty binary tree rooted at this node.
  * Duplicate nodes are not permitted.
  */
-public class BST
+public class BST implements RotationTree<BSTNode>
 {
 
     // root node of this tree
     BSTNode root = null;
 
+    // optional map from keys to nodes, see indexKeys
+    private NodeIndex index = null;
+
+    // see nodesVisited
+    private long nodesVisited = 0;
+
+    // the depth of our root in the whole tree, if this is a view of part of it
+    private int baseDepth = 0;
+
+    // told about every rotation, see setRotationObserver
+    private RotationObserver observer = RotationObserver.NONE;
+
+    // see keyFingerprint, only meaningful while keyFingerprintValid
+    private long keyFingerprint = 0;
+    private boolean keyFingerprintValid = false;
+
     /**
      * The only (public) way to construct this tree is with a non-empty list of keys.
      */
     public BST(Collection<Integer> keys)
     {
         if (keys.isEmpty()) throw new IllegalArgumentException("keys cannot be empty");
+
+        // with no keys yet, insert can keep the fingerprint up to date from the start
+        keyFingerprintValid = true;
         keys.forEach(this::insert);
     }
 
@@ -37,6 +56,93 @@ public class BST
         return root.size();
     }
 
+    public BSTNode root()
+    {
+        return root;
+    }
+
+    public BSTNode left(BSTNode x)
+    {
+        return x.left;
+    }
+
+    public BSTNode right(BSTNode x)
+    {
+        return x.right;
+    }
+
+    public BSTNode parent(BSTNode x)
+    {
+        return x.parent;
+    }
+
+    public int key(BSTNode x)
+    {
+        return x.key;
+    }
+
+    public int size(BSTNode x)
+    {
+        return x.size();
+    }
+
+    /**
+     * BSTNode.equals compares whole subtrees, so compare references instead.
+     */
+    @Override
+    public boolean sameNode(BSTNode a, BSTNode b)
+    {
+        return a == b;
+    }
+
+    /**
+     * The view measures depth from the root of the whole tree, as we do.
+     */
+    public BST subtree(BSTNode x)
+    {
+        BST subtree = new BST(x);
+        subtree.observer = observer;
+        subtree.baseDepth = depth(x);
+        return subtree;
+    }
+
+    /**
+     * The detached tree shares our index, since the nodes don't change keys while detached.
+     * Only search it for keys it holds.
+     */
+    public BST detach(BSTNode x)
+    {
+        // x is about to lose its parent, so work out its depth while we can
+        final int depth = depth(x);
+
+        // with no parent, rotations at x neither relink nor invalidate anything above it
+        x.parent = null;
+        BST subtree = new BST(x);
+        subtree.baseDepth = depth;
+        subtree.index = index;
+        subtree.observer = observer;
+        return subtree;
+    }
+
+    public void reattach(BSTNode parent, boolean left, RotationTree<BSTNode> subtree)
+    {
+        BSTNode x = subtree.root();
+        x.parent = parent;
+        nodesVisited += subtree.nodesVisited();
+        if (parent == null)
+        {
+            root = x;
+        }
+        else
+        {
+            if (left) parent.left = x;
+            else parent.right = x;
+
+            // the subtree may have changed shape while it was detached
+            parent.invalidateHash();
+        }
+    }
+
     /**
      * Returns the height of this tree, which is the number of edges on the longest path from
      * the root to a leaf.
@@ -92,6 +198,37 @@ public class BST
         {
             parent.right = newNode;
         }
+
+        if (index != null)
+        {
+            index.put(newNode);
+        }
+        if (keyFingerprintValid)
+        {
+            keyFingerprint += RotationTree.fingerprint(newKey);
+        }
+
+        // every ancestor of the new node gained one descendant, and has a different shape
+        for (BSTNode walk = parent; walk != null; walk = walk.parent)
+        {
+            walk.size++;
+            walk.hashValid = false;
+        }
+    }
+
+    /**
+     * Worked out with one walk the first time, and kept up to date by insert after that.
+     * Inserting through a subtree view leaves this tree's fingerprint stale.
+     */
+    @Override
+    public long keyFingerprint()
+    {
+        if (!keyFingerprintValid)
+        {
+            keyFingerprint = RotationTree.super.keyFingerprint();
+            keyFingerprintValid = true;
+        }
+        return keyFingerprint;
     }
 
     /**
@@ -100,7 +237,36 @@ public class BST
      */
     public Optional<BSTNode> search(int key)
     {
-        return root.search(key);
+        if (index != null)
+        {
+            BSTNode x = index.get(key);
+            if (x != null) nodesVisited++;
+            return Optional.ofNullable(x);
+        }
+
+        // as BSTNode.search, counting the nodes on the way down
+        BSTNode x = root;
+        while (x != null)
+        {
+            nodesVisited++;
+            if (x.key == key) break;
+            x = key < x.key ? x.left : x.right;
+        }
+        return Optional.ofNullable(x);
+    }
+
+    /**
+     * Build an index of the nodes by key, after which search takes O(1) instead of O(h).
+     * Rotations don't move keys between nodes and insert keeps the index up to date,
+     * so it never has to be rebuilt.
+     */
+    @Override
+    public void indexKeys()
+    {
+        if (index == null)
+        {
+            index = new NodeIndex(root);
+        }
     }
 
     /**
@@ -110,7 +276,57 @@ public class BST
      */
     public Optional<BSTNode> select(int i)
     {
-        return root.select(i);
+        if (i < 0 || i > root.size - 1) return Optional.empty();
+
+        // as BSTNode.select, counting the nodes on the way down
+        BSTNode x = root;
+        while (true)
+        {
+            nodesVisited++;
+            int r = x.left == null ? 0 : x.left.size;
+            if (i == r)
+            {
+                return Optional.of(x);
+            }
+            else if (i < r)
+            {
+                x = x.left;
+            }
+            else
+            {
+                i -= r + 1;
+                x = x.right;
+            }
+        }
+    }
+
+    @Override
+    public long nodesVisited()
+    {
+        return nodesVisited;
+    }
+
+    /**
+     * Returns the rank of the given key, which is the number of keys in the tree smaller than it.
+     * If the key is not in the tree then return an empty optional.
+     */
+    public OptionalInt rank(int key)
+    {
+        return root.rank(key);
+    }
+
+    /**
+     * Tell observer about every rotation from now on, replacing any observer set before.
+     * Passing null stops observing.
+     */
+    public void setRotationObserver(RotationObserver observer)
+    {
+        this.observer = observer == null ? RotationObserver.NONE : observer;
+    }
+
+    public RotationObserver rotationObserver()
+    {
+        return observer;
     }
 
     /**
@@ -122,7 +338,9 @@ public class BST
     @SuppressWarnings("SuspiciousNameCombination")
     public BSTNode rotateLeft(BSTNode x)
     {
-        boolean reassignRoot = x.parent == null;
+        // Compare against root rather than checking for a null parent, since this may be a
+        // subtree view whose root still has a parent in the enclosing tree.
+        boolean reassignRoot = x == root;
 
         BSTNode y = x.right;
         x.right = y.left;
@@ -136,16 +354,32 @@ public class BST
         {
             root = y;
         }
-        else if (x == x.parent.left)
+        if (x.parent != null)
         {
-            x.parent.left = y;
-        }
-        else
-        {
-            x.parent.right = y;
+            if (x.parent.left == x)
+            {
+                x.parent.left = y;
+            }
+            else
+            {
+                x.parent.right = y;
+            }
         }
         y.left = x;
         x.parent = y;
+
+        // y takes over x's subtree, and x loses y along with y's right subtree
+        y.size = x.size;
+        x.updateSize();
+
+        // x and everything above it now has a different shape
+        x.hashValid = false;
+        y.invalidateHash();
+
+        if (observer != RotationObserver.NONE)
+        {
+            observer.rotated(this, x, BalanceViaRotation.Rotation.Left);
+        }
         return y;
     }
 
@@ -158,7 +392,8 @@ public class BST
     @SuppressWarnings("SuspiciousNameCombination")
     public BSTNode rotateRight(BSTNode y)
     {
-        boolean reassignRoot = y.parent == null;
+        // see rotateLeft
+        boolean reassignRoot = y == root;
 
         BSTNode x = y.left;
         y.left = x.right;
@@ -172,19 +407,47 @@ public class BST
         {
             root = x;
         }
-        else if (y == y.parent.right)
-        {
-            y.parent.right = x;
-        }
-        else
+        if (y.parent != null)
         {
-            y.parent.left = x;
+            if (y.parent.right == y)
+            {
+                y.parent.right = x;
+            }
+            else
+            {
+                y.parent.left = x;
+            }
         }
         x.right = y;
         y.parent = x;
+
+        // x takes over y's subtree, and y loses x along with x's left subtree
+        x.size = y.size;
+        y.updateSize();
+
+        // y and everything above it now has a different shape
+        y.hashValid = false;
+        x.invalidateHash();
+
+        if (observer != RotationObserver.NONE)
+        {
+            observer.rotated(this, y, BalanceViaRotation.Rotation.Right);
+        }
         return x;
     }
 
+    /**
+     * Return the number of edges between x and the root of the whole tree, even if this is a
+     * subtree or detached view of part of it. This walks up from x to the root of the view,
+     * so it takes time proportional to the answer.
+     */
+    public int depth(BSTNode x)
+    {
+        int depth = baseDepth;
+        for (; x != root; x = x.parent) depth++;
+        return depth;
+    }
+
     /**
      * Perform an in-order walk of the tree, running the visit function on each node.
      */
@@ -15,6 +15,14 @@ class BSTNode
     BSTNode right = null;
     BSTNode parent = null;
 
+    // number of nodes in the subtree rooted at this node, kept up to date by BST
+    int size = 1;
+
+    // Cached structural hash of the subtree rooted at this node, only meaningful while hashValid.
+    // Whenever a node's hash is invalid, so are the hashes of all its ancestors.
+    private long hash;
+    boolean hashValid = false;
+
     /**
      * Construct a BinaryNode with the given key, left child, right child, and parent.
      * All fields except for `key` may be null.
@@ -29,21 +37,147 @@ class BSTNode
      */
     int size()
     {
-        int size = 1;  // the size is at least one, since this node is non-null (duh)
-        if (left != null) size += left.size();
-        if (right != null) size += right.size();
         return size;
     }
 
+    /**
+     * Return the size of the subtree rooted at n, which is zero if n is null.
+     */
+    static int sizeOf(BSTNode n)
+    {
+        return n == null ? 0 : n.size;
+    }
+
+    /**
+     * Recompute the size of this node from the sizes of its children.
+     */
+    void updateSize()
+    {
+        size = 1 + sizeOf(left) + sizeOf(right);
+    }
+
+    /**
+     * Mark the hash of this node and of all its ancestors as out of date. We can stop at the
+     * first node which is already invalid, since its ancestors must be invalid too.
+     */
+    void invalidateHash()
+    {
+        for (BSTNode x = this; x != null && x.hashValid; x = x.parent)
+        {
+            x.hashValid = false;
+        }
+    }
+
+    /**
+     * Return a hash of the keys and shape of the subtree rooted at this node, built bottom-up
+     * like a Merkle tree. It is cached, so only nodes changed since the last call are rehashed.
+     */
+    long structuralHash()
+    {
+        if (hashValid) return hash;
+
+        // The invalid nodes form a connected region at the top of this subtree. Rehash them in
+        // post-order so that the hashes of a node's children are ready before the node itself.
+        BSTNode x = firstInvalidInPostOrder(this);
+        while (true)
+        {
+            x.hash = combine(x.key, hashOf(x.left), hashOf(x.right));
+            x.hashValid = true;
+            if (x == this) return hash;
+
+            BSTNode p = x.parent;
+            if (p.left == x && p.right != null && !p.right.hashValid)
+            {
+                x = firstInvalidInPostOrder(p.right);
+            }
+            else
+            {
+                x = p;
+            }
+        }
+    }
+
+    /**
+     * Return the first node a post-order walk of the invalid nodes under x would visit.
+     */
+    private static BSTNode firstInvalidInPostOrder(BSTNode x)
+    {
+        while (true)
+        {
+            if (x.left != null && !x.left.hashValid) x = x.left;
+            else if (x.right != null && !x.right.hashValid) x = x.right;
+            else return x;
+        }
+    }
+
+    private static long hashOf(BSTNode n)
+    {
+        // an arbitrary constant for empty subtrees, so that they hash differently from key 0
+        return n == null ? 0x9E3779B97F4A7C15L : n.hash;
+    }
+
+    /**
+     * Hash a node from its key and the hashes of its children. The left hash goes through an
+     * extra mixing round before the right one is added, so mirrored subtrees hash differently.
+     */
+    private static long combine(int key, long leftHash, long rightHash)
+    {
+        return mix(mix(mix(key) + leftHash) + rightHash);
+    }
+
+    /**
+     * The 64-bit finalizer from MurmurHash3.
+     */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     /**
      * Returns the height of the subtree rooted at this node.
      */
     int height()
     {
+        // pre-order walk using the parent links, tracking the depth of the current node
+        BSTNode x = this;
+        int depth = 0;
         int h = 0;
-        if (left != null) h = Math.max(h, 1 + left.height());
-        if (right != null) h = Math.max(h, 1 + right.height());
-        return h;
+        descend:
+        while (true)
+        {
+            h = Math.max(h, depth);
+            if (x.left != null)
+            {
+                x = x.left;
+                depth++;
+                continue;
+            }
+            if (x.right != null)
+            {
+                x = x.right;
+                depth++;
+                continue;
+            }
+
+            // x is a leaf, so climb until we find a right subtree we haven't walked yet
+            while (x != this)
+            {
+                BSTNode p = x.parent;
+                if (p.left == x && p.right != null)
+                {
+                    x = p.right;
+                    continue descend;
+                }
+                x = p;
+                depth--;
+            }
+            return h;
+        }
     }
 
     /**
@@ -52,20 +186,12 @@ class BSTNode
      */
     Optional<BSTNode> search(int key)
     {
-        if (this.key == key)
-        {
-            return Optional.of(this);
-        }
-        else if (key < this.key)
-        {
-            if (this.left == null) return Optional.empty();
-            else return this.left.search(key);
-        }
-        else
+        BSTNode x = this;
+        while (x != null && x.key != key)
         {
-            if (this.right == null) return Optional.empty();
-            else return this.right.search(key);
+            x = key < x.key ? x.left : x.right;
         }
+        return Optional.ofNullable(x);
     }
 
     /**
@@ -77,23 +203,54 @@ class BSTNode
      */
     Optional<BSTNode> select(int i)
     {
-        if (i < 0 || i > size() - 1) return Optional.empty();
+        if (i < 0 || i > size - 1) return Optional.empty();
 
-        int r = left != null ? left.size() : 0;
-        if (i == r)
+        BSTNode x = this;
+        while (true)
         {
-            return Optional.of(this);
+            int r = sizeOf(x.left);
+            if (i == r)
+            {
+                return Optional.of(x);
+            }
+            else if (i < r)
+            { // x must be in the left subtree
+                x = x.left;
+            }
+            else
+            {
+                i -= r + 1;
+                x = x.right;
+            }
         }
-        else if (i < r)
-        { // x must be in the left subtree
-            assert left != null;
-            return left.select(i);
-        }
-        else
+    }
+
+    /**
+     * Returns the rank of the given key within the subtree rooted at this node, which is the
+     * number of keys in the subtree that are smaller than it. If the key is not present then
+     * return an empty optional.
+     */
+    OptionalInt rank(int key)
+    {
+        int r = 0;
+        BSTNode x = this;
+        while (x != null)
         {
-            assert right != null;
-            return right.select(i - r - 1);
+            if (key < x.key)
+            {
+                x = x.left;
+            }
+            else if (key > x.key)
+            {
+                r += sizeOf(x.left) + 1;
+                x = x.right;
+            }
+            else
+            {
+                return OptionalInt.of(r + sizeOf(x.left));
+            }
         }
+        return OptionalInt.empty();
     }
 
     /**
@@ -101,14 +258,9 @@ class BSTNode
      */
     BSTNode minimum()
     {
-        if (left == null)
-        {
-            return this;
-        }
-        else
-        {
-            return this.left.minimum();
-        }
+        BSTNode x = this;
+        while (x.left != null) x = x.left;
+        return x;
     }
 
     /**
@@ -116,26 +268,50 @@ class BSTNode
      */
     BSTNode maximum()
     {
-        if (right == null)
+        BSTNode x = this;
+        while (x.right != null) x = x.right;
+        return x;
+    }
+
+    /**
+     * Return the node following x in an in-order walk of the subtree rooted at this node,
+     * or null if x is the last one.
+     */
+    private BSTNode successor(BSTNode x)
+    {
+        if (x.right != null) return x.right.minimum();
+        while (x != this)
         {
-            return this;
+            BSTNode p = x.parent;
+            if (p.left == x) return p;
+            x = p;
         }
-        else
+        return null;
+    }
+
+    /**
+     * Return the node visited first by a post-order walk of the subtree rooted at x.
+     */
+    private static BSTNode firstInPostOrder(BSTNode x)
+    {
+        while (true)
         {
-            return this.right.maximum();
+            if (x.left != null) x = x.left;
+            else if (x.right != null) x = x.right;
+            else return x;
         }
     }
 
-
     /**
      * Return a list of keys visited from an in-order walk of the subtree rooted at this node.
      * If visit is non-null, runs the provided unary function on each node.
      */
     void inOrder(Consumer<BSTNode> visit)
     {
-        if (left != null) left.inOrder(visit);
-        visit.accept(this);
-        if (right != null) right.inOrder(visit);
+        for (BSTNode x = minimum(); x != null; x = successor(x))
+        {
+            visit.accept(x);
+        }
     }
 
     /**
@@ -173,14 +349,32 @@ class BSTNode
      */
     public void postOrder(Consumer<BSTNode> visit)
     {
-        if (left != null) left.postOrder(visit);
-        if (right != null) right.postOrder(visit);
-        visit.accept(this);
+        BSTNode x = firstInPostOrder(this);
+        while (true)
+        {
+            visit.accept(x);
+            if (x == this) return;
+
+            BSTNode p = x.parent;
+            if (p.left == x && p.right != null)
+            {
+                x = firstInPostOrder(p.right);
+            }
+            else
+            {
+                x = p;
+            }
+        }
     }
 
     /**
-     * NOTE: we deliberately leave the parent from the recursive check since it leads
+     * NOTE: we deliberately leave the parent from the check since it leads
      * to an infinite loop
+     * <p>
+     * Subtrees with the same size and structural hash are taken to be identical, just as
+     * FINGERPRINT validation trusts the key fingerprints. Two different subtrees only share a
+     * 64-bit hash by a fluke, so equal subtrees cost O(1) once their hashes are up to date. With
+     * -Dbalancing.validation=FULL we confirm it with a walk over both subtrees instead.
      */
     @Override
     public boolean equals(Object o)
@@ -188,9 +382,60 @@ class BSTNode
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BSTNode that = (BSTNode) o;
-        return key == that.key &&
-                Objects.equals(left, that.left) &&
-                Objects.equals(right, that.right);
+
+        // Different sizes or hashes settle the question straight away.
+        if (size != that.size || structuralHash() != that.structuralHash()) return false;
+
+        return BalanceViaRotation.VALIDATION != BalanceViaRotation.Validation.FULL || sameShapeAndKeys(that);
+    }
+
+    /**
+     * Are the subtrees rooted at this node and at that one identical? Unlike equals this never
+     * trusts the hashes: it walks both subtrees in pre-order in lockstep. As long as the shapes
+     * agree, every move made in one subtree can be mirrored in the other.
+     */
+    boolean sameShapeAndKeys(BSTNode that)
+    {
+        BSTNode a = this;
+        BSTNode b = that;
+        descend:
+        while (true)
+        {
+            if (a.key != b.key
+                    || (a.left == null) != (b.left == null)
+                    || (a.right == null) != (b.right == null))
+            {
+                return false;
+            }
+
+            if (a.left != null)
+            {
+                a = a.left;
+                b = b.left;
+                continue;
+            }
+            if (a.right != null)
+            {
+                a = a.right;
+                b = b.right;
+                continue;
+            }
+
+            while (a != this)
+            {
+                BSTNode pa = a.parent;
+                BSTNode pb = b.parent;
+                if (pa.left == a && pa.right != null)
+                {
+                    a = pa.right;
+                    b = pb.right;
+                    continue descend;
+                }
+                a = pa;
+                b = pb;
+            }
+            return true;
+        }
     }
 
 
@@ -200,6 +445,6 @@ class BSTNode
     @Override
     public int hashCode()
     {
-        return Objects.hash(key, left, right);
+        return Long.hashCode(structuralHash());
     }
 }
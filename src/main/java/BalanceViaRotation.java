@@ -1,7 +1,10 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 
@@ -10,61 +13,89 @@ import java.util.stream.Stream;
  */
 public class BalanceViaRotation
 {
+    // In parallel A3, subtrees with fewer nodes than this are transformed on the calling thread.
+    static final int PARALLEL_A3_THRESHOLD = 1 << 12;
+
+    // A1 and A2 only fold the two sides of the root at the same time for trees at least this big.
+    static final int PARALLEL_FOREARMS_THRESHOLD = 1 << 14;
+
+    // The parallel tree builder builds subtrees with fewer keys than this on a single thread.
+    static final int PARALLEL_BUILD_CUTOFF = 1 << 14;
+
+    // The parallel search for maximal identical subtrees walks subtrees smaller than this on one thread.
+    static final int PARALLEL_SUBTREES_CUTOFF = 1 << 13;
+
+    // Parallel randomlyRotate perturbs subtrees smaller than this with a single generator on one thread.
+    static final int PARALLEL_ROTATE_CUTOFF = 1 << 14;
+
+    // A1's forearm plans, shared by all calls. Holds up to 2^24 entries (64 MiB).
+    static final PlanCache forearmPlans = new PlanCache(1 << 24);
+
+    // How A1, A2 and A3 check their arguments, set with -Dbalancing.validation=NONE, FINGERPRINT or FULL.
+    static final Validation VALIDATION = Validation.valueOf(System.getProperty("balancing.validation", "FINGERPRINT"));
 
     /**
-     * Perform the project's main experiment.
+     * Perform the project's main experiment. The optional arguments are the number of threads to
+     * run trials on (all the processors by default), the seed to draw the trials' seeds from, and
+     * a file to write the results to (CSV, or JSON Lines if it ends in .jsonl) instead of printing them.
      */
-    public static void main(String[] args)
+    public static void main(String[] args) throws IOException
     {
-        for (int n : List.of(1000, 1100, 1200))
+        BalancingMetrics.register();
+        final int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        System.out.println("seed = " + seed);
+        System.out.println();
+
+        // Perform 5 experiments for each possible pairing of algorithm and key size (n).
+        var trials = ExperimentRunner.trials(List.of(1000, 1100, 1200), List.of(Algorithm.values()), 5, seed);
+        if (args.length > 2)
         {
-            for (Algorithm a : Algorithm.values())
+            try (ResultWriter sink = ResultWriter.open(Path.of(args[2])))
             {
-                // Perform 5 experiments for each possible pairing of algorithm and key size (n).
-                performExperiments(a, n);
-                System.out.println();
+                ExperimentRunner.run(trials, parallelism, sink);
             }
         }
+        else
+        {
+            printResults(ExperimentRunner.run(trials, parallelism));
+        }
     }
 
     static void performExperiments(final Algorithm algo, final int n)
     {
         assert n >= 1;
 
-        // create the keys, which we shuffle each trial
-        final List<Integer> keys = IntStream
-                .range(0, n)
-                .boxed()
-                .collect(Collectors.toList());
-
-        System.out.println(algo + " with n=" + n);
-
         // perform the trials
-        for (int i = 0; i < 5; i++)
-        {
+        var trials = ExperimentRunner.trials(List.of(n), List.of(algo), 5, System.nanoTime());
+        printResults(ExperimentRunner.run(trials, 1));
+    }
 
-            // create the trees
-            BST S = makeAlmostCompleteBST(keys);
-            BST T = makeAlmostCompleteBST(keys);
+    /**
+     * Print results grouped by algorithm and n, with a blank line after each group.
+     */
+    static void printResults(List<ExperimentRunner.Result> results)
+    {
+        for (int i = 0; i < results.size(); i++)
+        {
+            final ExperimentRunner.Trial trial = results.get(i).trial();
+            final Statistic stat = results.get(i).statistic();
+            if (trial.i() == 0)
+            {
+                final boolean perturbed = trial.source() == TreeGenerators.Source.PERTURBED;
+                System.out.println(trial.algorithm() + " with n=" + trial.n() + (perturbed ? "" : ", S " + trial.source()));
+            }
 
-            // spice things up by randomly rotating edges in S
-            randomlyRotate(S);
+            switch (trial.algorithm())
+            {
+                case A1 -> System.out.println("rotations actual = " + stat.rotationsActual + ", expected = " + stat.rotationsExpected);
+                case A2 -> System.out.println("rotations actual = " + stat.rotationsActual + ", expected = " + stat.rotationsExpected + " +- 1");
+                case A3 -> System.out.println("rotations actual = " + stat.rotationsActual + ", upper bound = " + stat.rotationsExpected);
+            }
 
-            // run the requested algorithm
-            switch (algo)
+            if (i + 1 == results.size() || results.get(i + 1).trial().i() == 0)
             {
-                case A1 -> {
-                    Statistic stat = A1(S, T);
-                    System.out.println("rotations actual = " + stat.rotationsActual + ", expected = " + stat.rotationsExpected);
-                }
-                case A2 -> {
-                    Statistic stat = A2(S, T);
-                    System.out.println("rotations actual = " + stat.rotationsActual + ", expected = " + stat.rotationsExpected + " +- 1");
-                }
-                case A3 -> {
-                    Statistic stat = A3(S, T);
-                    System.out.println("rotations actual = " + stat.rotationsActual + ", upper bound = " + stat.rotationsExpected);
-                }
+                System.out.println();
             }
         }
     }
@@ -72,42 +103,139 @@ public class BalanceViaRotation
     /**
      * Randomly rotate edges in a given tree.
      */
-    static void randomlyRotate(BST t)
+    static <N> void randomlyRotate(RotationTree<N> t)
+    {
+        randomlyRotate(t, new SplittableRandom());
+    }
+
+    /**
+     * Randomly rotate edges in a given tree, drawing from random so that the rotations can be
+     * repeated. This is a single in-order walk that decides on each node as it goes, so it
+     * allocates nothing (beyond boxing the handles of an IndexedBST).
+     */
+    static <N> void randomlyRotate(RotationTree<N> t, SplittableRandom random)
     {
-        // Choose edges (well, keys really) as candidates for rotation.
-        Random r = new Random();
-        var nodesToRotate = t.inOrderNodes().stream()
-                // the rotation methods don't work on leaves, so filter them out
-                .filter(n -> n.left != null || n.right != null)
-                // do not rotate a node with probability 0.01
-                .filter(x -> r.nextInt(100) != 0)
-                // rotate the remaining nodes with probability 0.5
-                .filter(x -> r.nextBoolean())
-                .collect(Collectors.toList());
+        N x = t.root();
+        while (t.left(x) != null) x = t.left(x);
 
-        // randomly rotate edges of S
-        for (var node : nodesToRotate)
+        // Rotations don't change the in-order sequence, so the successor of a node is the
+        // same key whether or not we just rotated it.
+        for (; x != null; x = successor(t, x))
         {
-            // make sure we don't have a leaf.
-            if (node.left != null)
+            // the rotation methods don't work on leaves, so skip them
+            if (t.left(x) == null && t.right(x) == null) continue;
+
+            // do not rotate a node with probability 0.01, otherwise rotate it with probability 0.5
+            if (random.nextInt(100) == 0 || !random.nextBoolean()) continue;
+
+            if (t.left(x) != null)
             {
-                t.rotateRight(node);
+                t.rotateRight(x);
             }
-            else if (node.right != null)
+            else
             {
-                t.rotateLeft(node);
+                t.rotateLeft(x);
             }
         }
     }
 
+    /**
+     * Randomly rotate edges in a given tree, splitting off a new generator for each subtree
+     * with at least PARALLEL_ROTATE_CUTOFF nodes so that the subtrees can be perturbed in
+     * parallel on the pool. The result depends only on random, not on the pool, which may be null.
+     */
+    static <N> void randomlyRotate(RotationTree<N> t, SplittableRandom random, ForkJoinPool pool)
+    {
+        randomlyRotate(t, random, pool, PARALLEL_ROTATE_CUTOFF);
+    }
+
+    /**
+     * As above, splitting the generator for subtrees with at least cutoff nodes.
+     */
+    static <N> void randomlyRotate(RotationTree<N> t, SplittableRandom random, ForkJoinPool pool, int cutoff)
+    {
+        if (pool == null)
+        {
+            randomlyRotateSplit(t, random, null, Math.max(cutoff, 1));
+        }
+        else
+        {
+            pool.invoke(ForkJoinTask.adapt(() -> randomlyRotateSplit(t, random, pool, Math.max(cutoff, 1))));
+        }
+    }
+
+    /**
+     * Perturb the two subtrees of the root of t with generators of their own, each as a tree
+     * detached from t, and then decide on the root itself.
+     */
+    private static <N> void randomlyRotateSplit(RotationTree<N> t, SplittableRandom random, ForkJoinPool pool, int cutoff)
+    {
+        final N root = t.root();
+        if (t.size(root) < cutoff)
+        {
+            randomlyRotate(t, random);
+            return;
+        }
+
+        // Split in a fixed order, so that each subtree gets the same generator every time.
+        final SplittableRandom leftRandom = random.split();
+        final SplittableRandom rightRandom = random.split();
+        final N left = t.left(root);
+        final N right = t.right(root);
+        final RotationTree<N> leftTree = left == null ? null : t.detach(left);
+        final RotationTree<N> rightTree = right == null ? null : t.detach(right);
+
+        ForkJoinTask<?> leftTask = null;
+        if (leftTree != null)
+        {
+            if (pool == null) randomlyRotateSplit(leftTree, leftRandom, null, cutoff);
+            else leftTask = pool.submit(() -> randomlyRotateSplit(leftTree, leftRandom, pool, cutoff));
+        }
+        if (rightTree != null) randomlyRotateSplit(rightTree, rightRandom, pool, cutoff);
+        if (leftTask != null) leftTask.join();
+
+        if (leftTree != null) t.reattach(root, true, leftTree);
+        if (rightTree != null) t.reattach(root, false, rightTree);
+
+        // now the root, as in the sequential walk
+        if ((left != null || right != null) && random.nextInt(100) != 0 && random.nextBoolean())
+        {
+            if (t.left(root) != null) t.rotateRight(root);
+            else t.rotateLeft(root);
+        }
+    }
+
+    /**
+     * Return the node after x in an in-order walk of t, or null if x is the last one.
+     */
+    private static <N> N successor(RotationTree<N> t, N x)
+    {
+        N walk = t.right(x);
+        if (walk != null)
+        {
+            while (t.left(walk) != null) walk = t.left(walk);
+            return walk;
+        }
+
+        // climb until we come up from a left child
+        N parent = t.parent(x);
+        while (parent != null && t.sameNode(x, t.right(parent)))
+        {
+            x = parent;
+            parent = t.parent(parent);
+        }
+        return parent;
+    }
+
     /**
      * Calculate the value of p, used Theorem 1 in the paper, for a nearly complete tree of size n.
      */
     static int p(int n)
     {
         final int h = levels(n);
-        final int v = (int) Math.pow(2, h - 1) + (int) Math.pow(2, h - 2);
-        if (Math.pow(2, h - 1) <= n && n <= v - 2)
+        final long twoToHeight = 1L << h;
+        final long v = (twoToHeight >> 1) + (twoToHeight >> 2);
+        if (twoToHeight >> 1 <= n && n <= v - 2)
         {
             return +1;
         }
@@ -115,7 +243,7 @@ public class BalanceViaRotation
         {
             return 0;
         }
-        else if (v <= n && n <= (int) Math.pow(2, h) - 1)
+        else if (v <= n && n <= twoToHeight - 1)
         {
             return -1;
         }
@@ -131,40 +259,81 @@ public class BalanceViaRotation
      * @param S Arbitrary binary tree of n nodes
      * @param T Almost complete binary tree
      */
-    static Statistic A1(BST S, BST T)
+    static <N> Statistic A1(RotationTree<N> S, RotationTree<N> T)
     {
-        assertSanity(S, T);
+        return A1(S, T, null);
+    }
+
+    /**
+     * A_1, folding and unfolding the two sides of the root at the same time on the given pool
+     * when S has at least PARALLEL_FOREARMS_THRESHOLD nodes. The pool may be null.
+     */
+    static <N> Statistic A1(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool)
+    {
+        return BalancingMetrics.INSTANCE.measure(Algorithm.A1, S.size(), () -> runA1(S, T, pool, VALIDATION));
+    }
+
+    /**
+     * A1 without counting the call in BalancingMetrics, for use by the other algorithms.
+     * S and T are checked to the given level, so callers that have checked them already pass NONE.
+     */
+    private static <N> Statistic runA1(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool, Validation validation)
+    {
+        final PhaseStats phases = new PhaseStats(Algorithm.A1, S);
+        long start = phases.begin();
+        assertSanity(S, T, validation);
+        final ForkJoinPool sides = S.size() >= PARALLEL_FOREARMS_THRESHOLD ? pool : null;
+
+        // replaying the history below searches S once per rotation
+        S.indexKeys();
+        phases.record(PhaseStats.Phase.SETUP, start, 0, 0);
 
         // track the number of rotations performed across all steps
         int numRotations = 0;
 
         // (Step 2 from paper) compute rootT as in equation (1)
+        start = phases.begin();
+        long visited = S.nodesVisited();
         final int rootTRank = computeRootT(T.size());
-        final int csRootT = sizeOfForearms(S.select(rootTRank).orElseThrow());
+        final int csRootT = sizeOfForearms(S, S.select(rootTRank).orElseThrow());
 
         // (steps 3 and 4) If the node at rootT is not already in the root position, rotate it upwards so it becomes that way.
-        numRotations += rotateNodeToRoot(S, rootTRank);
+        final int rotationsRoot = rotateNodeToRoot(S, rootTRank);
+        numRotations += rotationsRoot;
+        visited = recordPhase(phases, PhaseStats.Phase.ROOT, start, rotationsRoot, S, visited);
 
         // (step 5) transform the tree into just its forearms.
-        numRotations += makeForearms(S, Set.of()).size();
-
-        // make a copy of T
-        BST TPrime = makeAlmostCompleteBST(T.keySet());
-        assert TPrime.equals(T);
-
-        // convert TPrime to a tree with only forearms, recording the sequence of rotations we perform
-        List<HistoryEntry> history = makeForearms(TPrime);
+        start = phases.begin();
+        final int rotationsFold = makeForearms(S, Set.of(), sides).size();
+        numRotations += rotationsFold;
+        visited = recordPhase(phases, PhaseStats.Phase.FOLD, start, rotationsFold, S, visited);
 
-        // apply the rotations in reverse to S to get the original T
-        applyInvertedRotations(S, history);
-        numRotations += history.size();
+        // Unfold the forearms into T. The rotations depend only on the size of T, so we
+        // generate them as we go rather than recording them on a copy of T.
+        start = phases.begin();
+        final int rotationsUnfold = unfoldForearms(S, Set.of(), sides);
+        numRotations += rotationsUnfold;
+        recordPhase(phases, PhaseStats.Phase.UNFOLD, start, rotationsUnfold, S, visited);
 
-        assert S.equals(T);
+        assert RotationTree.identical(S, T);
 
         int n = S.size();
         return new Statistic(
                 numRotations,
-                2 * n - 2 * (int) Math.floor(Utilities.logBase(2, n)) + p(n) - csRootT - 1);
+                2 * n - 2 * (int) Math.floor(Utilities.logBase(2, n)) + p(n) - csRootT - 1,
+                phases);
+    }
+
+    /**
+     * Record a phase of rotating S, counting as lookups the nodes S has visited since visited
+     * was read off it. Returns the new count, for the next phase.
+     */
+    private static <N> long recordPhase(PhaseStats phases, PhaseStats.Phase phase, long start, int rotations,
+                                        RotationTree<N> S, long visited)
+    {
+        final long now = S.nodesVisited();
+        phases.record(phase, start, rotations, now - visited);
+        return now;
     }
 
     /**
@@ -173,116 +342,335 @@ public class BalanceViaRotation
      * @param S Arbitrary binary tree of n nodes
      * @param T Almost complete binary tree
      */
-    static Statistic A2(BST S, BST T)
+    static <N> Statistic A2(RotationTree<N> S, RotationTree<N> T)
     {
-        assertSanity(S, T);
+        return A2(S, T, null);
+    }
+
+    /**
+     * A_2, folding and unfolding the two sides of the root at the same time on the given pool
+     * when S has at least PARALLEL_FOREARMS_THRESHOLD nodes. The pool may be null.
+     */
+    static <N> Statistic A2(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool)
+    {
+        return BalancingMetrics.INSTANCE.measure(Algorithm.A2, S.size(), () -> runA2(S, T, pool, VALIDATION));
+    }
+
+    /**
+     * A2 without counting the call in BalancingMetrics, for use by A3. See runA1 for validation.
+     */
+    private static <N> Statistic runA2(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool, Validation validation)
+    {
+        final PhaseStats phases = new PhaseStats(Algorithm.A2, S);
+        long start = phases.begin();
+        assertSanity(S, T, validation);
+        final ForkJoinPool sides = S.size() >= PARALLEL_FOREARMS_THRESHOLD ? pool : null;
+
+        // finding the common subtrees searches T once per node, and the replay searches S
+        S.indexKeys();
+        T.indexKeys();
+        phases.record(PhaseStats.Phase.SETUP, start, 0, 0);
 
         // find the roots of all the maximal identical subtrees of S and T
-        Set<Integer> maximalCommonSubtrees = findMaximalIdenticalSubtrees(S, T);
+        start = phases.begin();
+        Set<Integer> maximalCommonSubtrees = maximalIdenticalRoots(S, T, pool, PARALLEL_SUBTREES_CUTOFF);
+        phases.record(PhaseStats.Phase.MATCH, start, 0, 0);
 
         // Calculate this now before performing any rotations.
         final int subtreeTerm = maximalCommonSubtrees.stream()
                 .map(S::search)
                 .map(Optional::orElseThrow)
-                .mapToInt(BSTNode::size)
+                .mapToInt(S::size)
                 .sum();
 
         if (maximalCommonSubtrees.size() == 0)
         {
             // S and T share no common subtrees, so apply algorithm 1 normally.
-            return A1(S, T);
+            Statistic statisticA1 = runA1(S, T, pool, Validation.NONE);
+            phases.addAll(statisticA1.phases);
+            return new Statistic(statisticA1.rotationsActual, statisticA1.rotationsExpected, phases);
         }
         else
         {
             // Rotate the soon-to-be root of S into position.
+            start = phases.begin();
+            long visited = S.nodesVisited();
             final int rootTRank = computeRootT(T.size());
-            final int csRootT = sizeOfForearms(S.select(rootTRank).orElseThrow());
+            final int csRootT = sizeOfForearms(S, S.select(rootTRank).orElseThrow());
             final int rotationsRoot = rotateNodeToRoot(S, rootTRank);
+            visited = recordPhase(phases, PhaseStats.Phase.ROOT, start, rotationsRoot, S, visited);
 
             // Make the tree into just forearms, not rotations the maximal identical subtrees.
-            final int rotationsForearms = makeForearms(S, maximalCommonSubtrees).size();
-
-            // make a copy of T
-            BST TPrime = makeAlmostCompleteBST(T.keySet());
-            assert TPrime.equals(T);
-            assert TPrime.keySet().containsAll(maximalCommonSubtrees);
-
-            // Convert TPrime to a tree with only forearms,
-            // recording the sequence of rotations we perform.
-            List<HistoryEntry> history = makeForearms(TPrime, maximalCommonSubtrees);
+            start = phases.begin();
+            final int rotationsForearms = makeForearms(S, maximalCommonSubtrees, sides).size();
+            visited = recordPhase(phases, PhaseStats.Phase.FOLD, start, rotationsForearms, S, visited);
 
-            // apply the rotations in reverse to S to get the original T
-            applyInvertedRotations(S, history);
+            // Unfold the forearms into T, again leaving the maximal identical subtrees alone.
+            start = phases.begin();
+            final int rotationsUnfold = unfoldForearms(S, maximalCommonSubtrees, sides);
+            recordPhase(phases, PhaseStats.Phase.UNFOLD, start, rotationsUnfold, S, visited);
 
-            assert S.equals(T);
+            assert RotationTree.identical(S, T);
             final int n = S.size();
             return new Statistic(
-                    rotationsRoot + rotationsForearms + history.size(),
-                    2 * n - 2 * (int) Math.floor(Utilities.logBase(2, n)) - 2 * subtreeTerm - csRootT);
+                    rotationsRoot + rotationsForearms + rotationsUnfold,
+                    2 * n - 2 * (int) Math.floor(Utilities.logBase(2, n)) - 2 * subtreeTerm - csRootT,
+                    phases);
         }
     }
 
+    /**
+     * Turn a tree of forearms into an almost complete tree with the same keys, without rotating
+     * the nodes in ignoredKeys. This undoes makeForearms on the almost complete tree, but the
+     * rotations come from a ForearmUnfolding so that tree never has to be built. When nothing is
+     * ignored the rotations are read from forearmPlans instead.
+     *
+     * @return Number of rotations performed.
+     */
+    static <N> int unfoldForearms(RotationTree<N> t, Set<Integer> ignoredKeys)
+    {
+        return unfoldForearms(t, ignoredKeys, null);
+    }
+
+    /**
+     * As unfoldForearms, but if a pool is given the left side is unfolded on the pool while this
+     * thread unfolds the right side.
+     */
+    static <N> int unfoldForearms(RotationTree<N> t, Set<Integer> ignoredKeys, ForkJoinPool pool)
+    {
+        final int[] keysByRank = keysByRank(t);
+        final int n = keysByRank.length;
+        final BitSet ignoredRanks = new BitSet(n);
+        for (int k : ignoredKeys)
+        {
+            ignoredRanks.set(Arrays.binarySearch(keysByRank, k));
+        }
+
+        // with nothing ignored the plan only depends on n, so replay it from the cache
+        final int[] plan = ignoredKeys.isEmpty() ? forearmPlans.get(n) : null;
+
+        final N root = t.root();
+        final N left = t.left(root);
+        final N right = t.right(root);
+        if (pool == null || left == null || right == null)
+        {
+            return applyInvertedRotations(t, keysByRank,
+                    plan != null ? Arrays.stream(plan).iterator() : new ForearmUnfolding(n, ignoredRanks));
+        }
+
+        final PrimitiveIterator.OfInt leftPlan;
+        final PrimitiveIterator.OfInt rightPlan;
+        if (plan != null)
+        {
+            // the right side's entries come first, then the left side's
+            final int rootRank = computeRootT(n);
+            int split = 0;
+            while (split < plan.length && RotationLog.rankOf(plan[split]) > rootRank) split++;
+            rightPlan = Arrays.stream(plan, 0, split).iterator();
+            leftPlan = Arrays.stream(plan, split, plan.length).iterator();
+        }
+        else
+        {
+            rightPlan = ForearmUnfolding.rightSide(n, ignoredRanks);
+            leftPlan = ForearmUnfolding.leftSide(n, ignoredRanks);
+        }
+
+        final RotationTree<N> leftTree = t.detach(left);
+        final RotationTree<N> rightTree = t.detach(right);
+        ForkJoinTask<Integer> leftTask = pool.submit(() -> applyInvertedRotations(leftTree, keysByRank, leftPlan));
+        int numRotations = applyInvertedRotations(rightTree, keysByRank, rightPlan);
+        numRotations += leftTask.join();
+        t.reattach(root, true, leftTree);
+        t.reattach(root, false, rightTree);
+        return numRotations;
+    }
+
     /**
      * Return the combined number of nodes in the left and right forearm of the given node.
      */
-    static int sizeOfForearms(final BSTNode node)
+    static <N> int sizeOfForearms(final RotationTree<N> t, final N node)
     {
         int size = 0;
 
         // walk the left forearm
-        BSTNode walk = node.left;
+        N walk = t.left(node);
         while (walk != null)
         {
             size++;
-            walk = walk.right;
+            walk = t.right(walk);
         }
 
         // walk the right forearm
-        walk = node.right;
+        walk = t.right(node);
         while (walk != null)
         {
             size++;
-            walk = walk.left;
+            walk = t.left(walk);
+        }
+
+        return size;
+    }
+
+    /**
+     * Return how many nodes on the forearms of the given node lie in a subtree rooted at one of
+     * the given keys. A forearm only goes down, so once it enters such a subtree it stays there.
+     */
+    static <N> int sizeOfForearmsWithin(final RotationTree<N> t, final N node, final Set<Integer> roots)
+    {
+        int size = 0;
+
+        boolean within = false;
+        for (N walk = t.left(node); walk != null; walk = t.right(walk))
+        {
+            within = within || roots.contains(t.key(walk));
+            if (within) size++;
+        }
+
+        within = false;
+        for (N walk = t.right(node); walk != null; walk = t.left(walk))
+        {
+            within = within || roots.contains(t.key(walk));
+            if (within) size++;
         }
 
         return size;
     }
 
-    static Statistic A3(BST S, BST T)
+    static <N> Statistic A3(RotationTree<N> S, RotationTree<N> T)
     {
-        assertSanity(S, T);
-        Set<Integer> maximalEquivalentSubtrees = findMaximalEquivalentSubtrees(S, T);
+        return A3(S, T, null, PARALLEL_A3_THRESHOLD);
+    }
+
+    /**
+     * A_3, with A_1 applied to the larger maximal equivalent subtrees in parallel on the given pool.
+     */
+    static <N> Statistic A3(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool)
+    {
+        return A3(S, T, pool, PARALLEL_A3_THRESHOLD);
+    }
+
+    /**
+     * A_3 from the paper. The maximal equivalent subtrees share no nodes, so when a pool is given
+     * each one with at least threshold nodes is detached from S and handed to A_1 on the pool,
+     * while the smaller ones are done on the calling thread. If pool is null everything is done
+     * on the calling thread.
+     */
+    static <N> Statistic A3(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool, int threshold)
+    {
+        return BalancingMetrics.INSTANCE.measure(Algorithm.A3, S.size(), () -> runA3(S, T, pool, threshold, VALIDATION));
+    }
+
+    /**
+     * A3 without counting the call in BalancingMetrics.
+     */
+    private static <N> Statistic runA3(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool, int threshold,
+                                       Validation validation)
+    {
+        final PhaseStats phases = new PhaseStats(Algorithm.A3, S);
+        long start = phases.begin();
+        assertSanity(S, T, validation);
+        S.indexKeys();
+        T.indexKeys();
+        phases.record(PhaseStats.Phase.SETUP, start, 0, 0);
+
+        if (S.key(S.root()) == T.key(T.root()))
+        {
+            // Then the whole tree is equivalent, and A1 on it followed by A2 would balance it
+            // twice. The root stays put, so each side is a problem of its own and the bound is
+            // the sum of theirs.
+            int rotations = 0;
+            int expected = 0;
+            for (boolean left : new boolean[] {true, false})
+            {
+                final N x = left ? S.left(S.root()) : S.right(S.root());
+                if (x == null) continue;
+                final RotationTree<N> sideS = S.detach(x);
+                final RotationTree<N> sideT = T.subtree(left ? T.left(T.root()) : T.right(T.root()));
+                Statistic statistic = runA3(sideS, sideT, pool, threshold, Validation.NONE);
+                S.reattach(S.root(), left, sideS);
+                rotations += statistic.rotationsActual;
+                expected += statistic.rotationsExpected;
+                phases.addAll(statistic.phases);
+            }
+            return new Statistic(rotations, expected, phases);
+        }
+
+        start = phases.begin();
+        Set<Integer> maximalEquivalentSubtrees = maximalEquivalentRoots(S, T);
+        phases.record(PhaseStats.Phase.MATCH, start, 0, 0);
 
         // Calculate the subtree term (used later on) and the "g" term before performing rotations.
         final int subtreeTerm = maximalEquivalentSubtrees.stream()
                 .map(S::search)
                 .map(Optional::orElseThrow)
-                .map(BSTNode::size)
+                .map(S::size)
                 .mapToInt(n -> (int) Math.floor(Utilities.logBase(2, n)))
                 .sum();
 
         // compute cs(rootT) for the equation below
         final int rootTRank = computeRootT(T.size());
-        final int csRootT = sizeOfForearms(S.select(rootTRank).orElseThrow());
+        final N rootT = S.select(rootTRank).orElseThrow();
+        final int csRootT = sizeOfForearms(S, rootT);
 
-        // Apply A1 to each of the subtrees.
+        // A forearm node in an equivalent subtree is counted twice by the equation, as one that
+        // A2 needn't fold or unfold and again as part of a subtree it skips, so add those back.
+        final int overlap = sizeOfForearmsWithin(S, rootT, maximalEquivalentSubtrees)
+                + sizeOfForearmsWithin(T, T.root(), maximalEquivalentSubtrees);
+
+        // Apply A1 to each of the subtrees that aren't identical already. Equivalent subtrees hold
+        // the same keys by definition, so A1 needn't check them.
         int rotationsA1 = 0;
         int g = 0;
+        List<ForkedA1<N>> forked = new ArrayList<>();
+        List<N> inlineS = new ArrayList<>();
+        List<N> inlineT = new ArrayList<>();
         for (int k : maximalEquivalentSubtrees)
         {
-            BST subtreeS = new BST(S.search(k).orElseThrow());
-            BST subtreeT = new BST(T.search(k).orElseThrow());
-            if (!subtreeS.equals(subtreeT))
+            final N x = S.search(k).orElseThrow();
+            final N y = T.search(k).orElseThrow();
+            if (RotationTree.identical(S, x, T, y)) continue;
+
+            g++;
+            if (pool != null && S.size(x) >= threshold)
             {
-                g++;
-                rotationsA1 += A1(subtreeS, subtreeT).rotationsActual;
+                // Cut the subtree loose first, so that its rotations never write above it.
+                final N parent = S.parent(x);
+                final boolean left = parent != null && S.sameNode(S.left(parent), x);
+                final RotationTree<N> subtreeS = S.detach(x);
+                final RotationTree<N> subtreeT = T.subtree(y);
+                forked.add(new ForkedA1<>(parent, left, subtreeS, pool.submit(() -> runA1(subtreeS, subtreeT, pool, Validation.NONE))));
+            }
+            else
+            {
+                inlineS.add(x);
+                inlineT.add(y);
             }
-            assert subtreeS.equals(subtreeT);
         }
 
+        // The small subtrees still hang off S, so only this thread may rotate them.
+        for (int i = 0; i < inlineS.size(); i++)
+        {
+            Statistic statisticA1 = runA1(S.subtree(inlineS.get(i)), T.subtree(inlineT.get(i)), null, Validation.NONE);
+            rotationsA1 += statisticA1.rotationsActual;
+            phases.addAll(statisticA1.phases);
+        }
+
+        for (ForkedA1<N> f : forked)
+        {
+            Statistic statisticA1 = f.task.join();
+            rotationsA1 += statisticA1.rotationsActual;
+            phases.addAll(statisticA1.phases);
+            S.reattach(f.parent, f.left, f.subtree);
+        }
+
+        assert maximalEquivalentSubtrees.stream().allMatch(k ->
+                RotationTree.identical(S, S.search(k).orElseThrow(), T, T.search(k).orElseThrow()));
+
         // Now that we've transformed all maximal equivalent subtrees into
         // maximal identical subtrees, we can take advantage of A2.
-        Statistic statisticsA2 = A2(S, T);
+        // S and T were checked above and rotating leaves the keys be, so A2 needn't check again.
+        Statistic statisticsA2 = runA2(S, T, pool, Validation.NONE);
+        phases.addAll(statisticsA2.phases);
 
         int n = S.size();
         return new Statistic(
@@ -292,13 +680,24 @@ public class BalanceViaRotation
                         - csRootT
                         - 2 * subtreeTerm
                         + g
-                        + 1);
+                        + 1
+                        + overlap,
+                phases);
     }
 
     /**
-     * Ensure that S and T are good to go for use in algorithm1, algorithm2, or algorithm3.
+     * Ensure that S and T are good to go for use in algorithm1, algorithm2, or algorithm3,
+     * checking their keys as thoroughly as VALIDATION says.
      */
-    static void assertSanity(BST S, BST T)
+    static void assertSanity(RotationTree<?> S, RotationTree<?> T)
+    {
+        assertSanity(S, T, VALIDATION);
+    }
+
+    /**
+     * As above, checking the keys to the given level.
+     */
+    static void assertSanity(RotationTree<?> S, RotationTree<?> T, Validation validation)
     {
         if (S == T)
         {
@@ -308,7 +707,14 @@ public class BalanceViaRotation
         {
             throw new IllegalArgumentException("S and T must be non-null!");
         }
-        else if (!S.keySet().equals(T.keySet()))
+
+        final boolean sameKeys = switch (validation)
+        {
+            case NONE -> true;
+            case FINGERPRINT -> S.size() == T.size() && S.keyFingerprint() == T.keyFingerprint();
+            case FULL -> S.keySet().equals(T.keySet());
+        };
+        if (!sameKeys)
         {
             throw new IllegalArgumentException("S and T have different keysets!");
         }
@@ -319,43 +725,210 @@ public class BalanceViaRotation
      * bottom-up dynamic programming algorithm, implemented using a post-order
      * traversal.
      */
-    static Set<Integer> findMaximalIdenticalSubtrees(BST S, BST T)
+    static <N> Set<Integer> findMaximalIdenticalSubtrees(RotationTree<N> S, RotationTree<N> T)
     {
         assertSanity(S, T);
+        return maximalIdenticalRoots(S, T);
+    }
 
+    /**
+     * As above, but if a pool is given the two subtrees of each large node are searched in
+     * parallel. Each task reports whether its subtree is identical to the one in T along with
+     * the maximal roots it found, and the parent merges the two reports.
+     */
+    static <N> Set<Integer> findMaximalIdenticalSubtrees(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool)
+    {
+        return findMaximalIdenticalSubtrees(S, T, pool, PARALLEL_SUBTREES_CUTOFF);
+    }
+
+    /**
+     * As above, walking subtrees of fewer than cutoff nodes on a single thread.
+     */
+    static <N> Set<Integer> findMaximalIdenticalSubtrees(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool, int cutoff)
+    {
+        assertSanity(S, T);
+        return maximalIdenticalRoots(S, T, pool, cutoff);
+    }
+
+    /**
+     * findMaximalIdenticalSubtrees without checking S and T, for algorithms that already have.
+     */
+    private static <N> Set<Integer> maximalIdenticalRoots(RotationTree<N> S, RotationTree<N> T, ForkJoinPool pool, int cutoff)
+    {
+        if (pool == null) return maximalIdenticalRoots(S, T);
+        return pool.invoke(new IdenticalSubtreesTask<>(S, S.root(), T, Math.max(cutoff, 1))).roots;
+    }
+
+    /**
+     * The post-order walk behind findMaximalIdenticalSubtrees, over the whole of S.
+     */
+    private static <N> Set<Integer> maximalIdenticalRoots(RotationTree<N> S, RotationTree<N> T)
+    {
         // Maximum Identical Subtree roots.
         Set<Integer> MISRoots = new HashSet<>();
 
         // Do a post order traversal to find all maximal subtrees in S and T from the bottom up.
         S.postOrder(node ->
         {
-            // enumerate all children
-            List<Integer> childKeys = Stream.of(node.left, node.right)
-                    .filter(Objects::nonNull)
-                    .map(n -> n.key)
-                    .collect(Collectors.toList());
+            final N left = S.left(node);
+            final N right = S.right(node);
 
-            // If all this node's children (which may be none) are maximal roots of *identical* subtrees,
-            // and there is a node in T which equals this one, then this node is a maximal identical subtree.
-            Optional<BSTNode> nodeT = T.search(node.key);
-            if (MISRoots.containsAll(childKeys) && node.equals(nodeT.orElse(null)))
+            // This node can only root an identical subtree if all its children (which may be none)
+            // are maximal roots of *identical* subtrees.
+            if ((left != null && !MISRoots.contains(S.key(left)))
+                    || (right != null && !MISRoots.contains(S.key(right))))
             {
-                MISRoots.add(node.key);
+                return;
+            }
+
+            // Since the children's subtrees are already known to be identical, the subtrees are
+            // identical exactly when the node in T has children with the same keys. So there is
+            // no need to compare the whole subtrees again.
+            Optional<N> nodeT = T.search(S.key(node));
+            if (nodeT.isPresent()
+                    && sameKey(S, left, T, T.left(nodeT.get()))
+                    && sameKey(S, right, T, T.right(nodeT.get())))
+            {
+                MISRoots.add(S.key(node));
                 // This is a maximal subtree so its children are not anymore.
-                MISRoots.removeAll(childKeys);
+                if (left != null) MISRoots.remove(S.key(left));
+                if (right != null) MISRoots.remove(S.key(right));
             }
         });
 
         return MISRoots;
     }
 
+    /**
+     * Whether a subtree of S is identical to its counterpart in T, and the roots of the maximal
+     * identical subtrees within it. If the subtree is identical its root is the only one.
+     */
+    private record SubtreeMatch(boolean identical, Set<Integer> roots) { }
+
+    /**
+     * Finds the maximal identical subtrees within the subtree of S rooted at x.
+     */
+    @SuppressWarnings("serial") // see AlmostCompleteTask
+    private static final class IdenticalSubtreesTask<N> extends RecursiveTask<SubtreeMatch>
+    {
+        private final RotationTree<N> S;
+        private final N x;
+        private final RotationTree<N> T;
+        private final int cutoff;
+
+        IdenticalSubtreesTask(RotationTree<N> S, N x, RotationTree<N> T, int cutoff)
+        {
+            this.S = S;
+            this.x = x;
+            this.T = T;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected SubtreeMatch compute()
+        {
+            if (x == null)
+            {
+                // an empty subtree is trivially identical to the missing child in T
+                return new SubtreeMatch(true, new HashSet<>());
+            }
+            if (S.size(x) < cutoff)
+            {
+                Set<Integer> roots = maximalIdenticalRoots(S.subtree(x), T);
+                return new SubtreeMatch(roots.contains(S.key(x)), roots);
+            }
+
+            final N left = S.left(x);
+            final N right = S.right(x);
+            IdenticalSubtreesTask<N> leftTask = new IdenticalSubtreesTask<>(S, left, T, cutoff);
+            leftTask.fork();
+            SubtreeMatch rightMatch = new IdenticalSubtreesTask<>(S, right, T, cutoff).compute();
+            SubtreeMatch leftMatch = leftTask.join();
+
+            // As in the sequential walk, only the children's keys in T need checking.
+            if (leftMatch.identical && rightMatch.identical)
+            {
+                Optional<N> y = T.search(S.key(x));
+                if (y.isPresent() && sameKey(S, left, T, T.left(y.get())) && sameKey(S, right, T, T.right(y.get())))
+                {
+                    Set<Integer> roots = new HashSet<>();
+                    roots.add(S.key(x));
+                    return new SubtreeMatch(true, roots);
+                }
+            }
+
+            // Otherwise the roots below are maximal. Merge the smaller set into the larger one.
+            Set<Integer> roots = leftMatch.roots;
+            Set<Integer> other = rightMatch.roots;
+            if (roots.size() < other.size())
+            {
+                roots = rightMatch.roots;
+                other = leftMatch.roots;
+            }
+            roots.addAll(other);
+            return new SubtreeMatch(false, roots);
+        }
+    }
+
+    /**
+     * Are x (in S) and y (in T) either both null, or both nodes with the same key?
+     */
+    private static <N> boolean sameKey(RotationTree<N> S, N x, RotationTree<N> T, N y)
+    {
+        if (x == null || y == null) return x == null && y == null;
+        return S.key(x) == T.key(y);
+    }
+
     /**
      * Return a set of keys which are the roots of maximal equivalent subtrees in S and T.
+     * <p>
+     * The subtree rooted at key k is equivalent in S and T when it holds the same keys in both,
+     * which (since S and T have the same keys, and so the same ranks) is exactly when the node of
+     * some rank has the same vertex interval in both trees. The intervals of the subtrees of S are
+     * either nested or disjoint, so the maximal matches are found by sweeping the ranks from left
+     * to right, taking the widest match starting at each rank unless an earlier match covers it.
      */
-    static Set<Integer> findMaximalEquivalentSubtrees(BST S, BST T)
+    static <N> Set<Integer> findMaximalEquivalentSubtrees(RotationTree<N> S, RotationTree<N> T)
     {
-        // TODO
-        return new HashSet<>();
+        assertSanity(S, T);
+        return maximalEquivalentRoots(S, T);
+    }
+
+    /**
+     * findMaximalEquivalentSubtrees without checking S and T, for A3 which already has.
+     */
+    private static <N> Set<Integer> maximalEquivalentRoots(RotationTree<N> S, RotationTree<N> T)
+    {
+        final RankIntervals intervalsS = rankIntervals(S);
+        final RankIntervals intervalsT = rankIntervals(T);
+        final int n = S.size();
+
+        // widestAt[i] is the rank of the matching node with the widest interval starting at i, or -1
+        final int[] widestAt = new int[n];
+        Arrays.fill(widestAt, -1);
+        for (int r = 0; r < n; r++)
+        {
+            final int min = intervalsS.min()[r];
+            if (min == intervalsT.min()[r] && intervalsS.max()[r] == intervalsT.max()[r]
+                    && (widestAt[min] == -1 || intervalsS.max()[r] > intervalsS.max()[widestAt[min]]))
+            {
+                widestAt[min] = r;
+            }
+        }
+
+        Set<Integer> MESRoots = new HashSet<>();
+        int coveredUpTo = -1;
+        for (int i = 0; i < n; i++)
+        {
+            final int r = widestAt[i];
+            if (r != -1 && i > coveredUpTo)
+            {
+                MESRoots.add(intervalsS.keys()[r]);
+                coveredUpTo = intervalsS.max()[r];
+            }
+        }
+
+        return MESRoots;
     }
 
     /**
@@ -365,59 +938,101 @@ public class BalanceViaRotation
      * <p>
      * NOTE: rotating the tree or inserting new elements will likely invalidate the vertex intervals.
      */
-    static Map<Integer, VertexInterval> vertexIntervals(BST tree)
+    static <N> Map<Integer, VertexInterval> vertexIntervals(RotationTree<N> tree)
     {
+        final RankIntervals table = rankIntervals(tree);
 
-        // Create a map of keys to ranks through an in-order traversal.
-        Map<Integer, Integer> ranks = new HashMap<>();
-        AtomicInteger currentRank = new AtomicInteger(0);
-        tree.inOrder(n -> ranks.put(n.key, currentRank.getAndIncrement()));
-
-        // Create a map
         Map<Integer, VertexInterval> intervals = new HashMap<>();
+        for (int r = 0; r < table.keys().length; r++)
+        {
+            intervals.put(table.keys()[r], new VertexInterval(table.min()[r], table.max()[r]));
+        }
+        return intervals;
+    }
 
-        // Then do a post-order traversal to calculate the vertex intervals of each node.
-        // We do a post-order traversal so we visit the leaves first (this algorithm is a
-        // a bottom-up dynamic programming algorithm).
-        tree.postOrder(n ->
+    /**
+     * Compute the vertex intervals of all nodes in the tree, as a table indexed by rank.
+     * <p>
+     * This takes a single in-order walk: the node of rank r covers the ranks of its left subtree
+     * before it and of its right subtree after it, and the subtree sizes are already known.
+     * <p>
+     * NOTE: inserting new elements will invalidate the table. Rotations keep the keys but
+     * change the intervals.
+     */
+    static <N> RankIntervals rankIntervals(RotationTree<N> tree)
+    {
+        final int n = tree.size();
+        final RankIntervals table = new RankIntervals(new int[n], new int[n], new int[n]);
+        tree.inOrder(new Consumer<>()
         {
-            int min = ranks.get(n.key);
-            int max = ranks.get(n.key);
+            int rank = 0;
 
-            if (n.left != null)
+            public void accept(N x)
             {
-                // we have a left child
-                min = intervals.get(n.left.key).min;
+                table.keys()[rank] = tree.key(x);
+                table.min()[rank] = rank - sizeOf(tree, tree.left(x));
+                table.max()[rank] = rank + sizeOf(tree, tree.right(x));
+                rank++;
             }
+        });
+        return table;
+    }
 
-            if (n.right != null)
-            {
-                // we have a right child
-                max = intervals.get(n.right.key).max;
-            }
+    /**
+     * Given a tree and a sequence of rotations, apply the sequence of rotations to the tree in reverse,
+     * swapping left rotations for right and vice versa. The history may have been recorded on a
+     * different tree, as long as it has the same keys as this one.
+     */
+    static <N> void applyInvertedRotations(RotationTree<N> t, RotationLog history)
+    {
+        // The history refers to nodes by rank, so tabulate the key of each rank.
+        applyInvertedRotations(t, keysByRank(t), history.newestFirst());
+    }
 
-            intervals.put(n.key, new VertexInterval(min, max));
-        });
+    /**
+     * Apply the inverse of each packed RotationLog entry to the tree, in the order given.
+     * keysByRank holds the keys of the tree in ascending order.
+     *
+     * @return Number of rotations performed.
+     */
+    static <N> int applyInvertedRotations(RotationTree<N> t, int[] keysByRank, PrimitiveIterator.OfInt newestFirst)
+    {
+        if (t instanceof IndexedBST indexed) return applyInvertedRotations(indexed, keysByRank, newestFirst);
 
-        return intervals;
+        int numRotations = 0;
+        while (newestFirst.hasNext())
+        {
+            final int entry = newestFirst.nextInt();
+            N n = t.search(keysByRank[RotationLog.rankOf(entry)]).orElseThrow();
+            switch (RotationLog.rotationOf(entry))
+            {
+                case Left -> t.rotateRight(n);
+                case Right -> t.rotateLeft(n);
+            }
+            numRotations++;
+        }
+        return numRotations;
     }
 
     /**
-     * Given a tree and a sequence of rotations, apply the sequence of rotations to the tree in reverse,
-     * swapping left rotations for right and vice versa.
+     * applyInvertedRotations on the raw indices of an IndexedBST, so that nothing gets boxed.
      */
-    static void applyInvertedRotations(BST t, List<HistoryEntry> history)
+    private static int applyInvertedRotations(IndexedBST t, int[] keysByRank, PrimitiveIterator.OfInt newestFirst)
     {
-        for (int i = history.size() - 1; i >= 0; i--)
+        int numRotations = 0;
+        while (newestFirst.hasNext())
         {
-            HistoryEntry h = history.get(i);
-            BSTNode n = t.search(h.key).orElseThrow();
-            switch (h.rotation)
+            final int entry = newestFirst.nextInt();
+            final int n = t.searchIndex(keysByRank[RotationLog.rankOf(entry)]);
+            if (n == NodeStore.NIL) throw new NoSuchElementException("no node of rank " + RotationLog.rankOf(entry));
+            switch (RotationLog.rotationOf(entry))
             {
                 case Left -> t.rotateRight(n);
                 case Right -> t.rotateLeft(n);
             }
+            numRotations++;
         }
+        return numRotations;
     }
 
     /**
@@ -426,26 +1041,30 @@ public class BalanceViaRotation
      *
      * @return Number of rotations performed.
      */
-    static int rotateNodeToRoot(BST S, int rank)
+    static <N> int rotateNodeToRoot(RotationTree<N> S, int rank)
     {
+        if (S instanceof IndexedBST indexed) return rotateNodeToRoot(indexed, rank);
+
         // (Step 3 from paper) First find the node in S that will become the new root
-        BSTNode rootT = S.select(rank).orElseThrow();
+        N rootT = S.select(rank).orElseThrow();
 
         int numRotations = 0;
 
         // (Step 4 from paper) if rootT is not already in the rootT position, move it up w/ k-1 rotations
-        while (rootT != S.root)
+        while (!S.sameNode(rootT, S.root()))
         {
+            N parent = S.parent(rootT);
+
             // if we're the left-child of our parent, then do a right-rotation to move ourselves up
-            if (rootT.parent.left == rootT)
+            if (S.sameNode(S.left(parent), rootT))
             {
-                S.rotateRight(rootT.parent);
+                S.rotateRight(parent);
                 numRotations++;
             }
-            else if (rootT.parent.right == rootT)
+            else if (S.sameNode(S.right(parent), rootT))
             {
                 // otherwise we're the right child of our parent, so do a left-rotation to move ourselves up
-                S.rotateLeft(rootT.parent);
+                S.rotateLeft(parent);
                 numRotations++;
             }
             else
@@ -457,55 +1076,199 @@ public class BalanceViaRotation
         return numRotations;
     }
 
+    /**
+     * rotateNodeToRoot on the raw indices of an IndexedBST.
+     */
+    private static int rotateNodeToRoot(IndexedBST S, int rank)
+    {
+        final NodeStore nodes = S.nodes;
+        final int rootT = S.selectIndex(rank);
+        if (rootT == NodeStore.NIL) throw new NoSuchElementException("no node of rank " + rank);
+
+        int numRotations = 0;
+        while (rootT != S.root)
+        {
+            final int parent = nodes.parent(rootT);
+            if (nodes.left(parent) == rootT) S.rotateRight(parent);
+            else S.rotateLeft(parent);
+            numRotations++;
+        }
+        return numRotations;
+    }
+
     /**
      * Convert the tree into just left and right forearms, recording the sequence of
      * rotations done to get there. We do not rotate the keys given in ignoredKeys.
+     * <p>
+     * The rotations are recorded by the rank of the node that moves up. We keep track of the
+     * rank of the current node as we go using the subtree sizes, so this costs nothing extra.
+     */
+    static <N> RotationLog makeForearms(RotationTree<N> t, Set<Integer> ignoredKeys)
+    {
+        return makeForearms(t, ignoredKeys, null);
+    }
+
+    /**
+     * As makeForearms, but if a pool is given the left side is folded on the pool while this
+     * thread folds the right side. Each side records its own log, and the left log is returned
+     * with the right one appended, just as if the sides had been folded one after the other.
+     */
+    static <N> RotationLog makeForearms(RotationTree<N> t, Set<Integer> ignoredKeys, ForkJoinPool pool)
+    {
+        final N root = t.root();
+        final N left = t.left(root);
+        final N right = t.right(root);
+        final int rightOffset = sizeOf(t, left) + 1;
+        final RotationLog leftHistory = new RotationLog(sizeOf(t, left));
+        final RotationLog rightHistory = new RotationLog(sizeOf(t, right));
+
+        if (ignoredKeys.contains(t.key(root)))
+        {
+            // the whole tree is left alone
+            return leftHistory;
+        }
+        else if (pool == null || left == null || right == null)
+        {
+            foldLeftForearm(t, left, ignoredKeys, leftHistory);
+            foldRightForearm(t, right, rightOffset, ignoredKeys, rightHistory);
+        }
+        else
+        {
+            // The sides share no nodes, and once detached they don't share the root either.
+            final RotationTree<N> leftTree = t.detach(left);
+            final RotationTree<N> rightTree = t.detach(right);
+            ForkJoinTask<?> leftTask = pool.submit(() -> foldLeftForearm(leftTree, leftTree.root(), ignoredKeys, leftHistory));
+            foldRightForearm(rightTree, rightTree.root(), rightOffset, ignoredKeys, rightHistory);
+            leftTask.join();
+            t.reattach(root, true, leftTree);
+            t.reattach(root, false, rightTree);
+        }
+
+        leftHistory.addAll(rightHistory);
+        return leftHistory;
+    }
+
+    /**
+     * Fold the subtree rooted at current, the left child of the root, into the left forearm.
      */
-    static List<HistoryEntry> makeForearms(BST t, Set<Integer> ignoredKeys)
+    private static <N> void foldLeftForearm(RotationTree<N> t, N current, Set<Integer> ignoredKeys, RotationLog history)
     {
-        // Record the sequence of rotations performed.
-        List<HistoryEntry> history = new ArrayList<>();
+        if (t instanceof IndexedBST indexed)
+        {
+            foldLeftForearm(indexed, current == null ? NodeStore.NIL : (Integer) current, indexed.indicesOf(ignoredKeys), history);
+            return;
+        }
 
-        // Fold the left subtree into the left forearm.
-        BSTNode current = t.root.left;
-        while (current != null)
+        int rank = current == null ? 0 : sizeOf(t, t.left(current));
+        // An ignored node on the spine holds the largest keys of the side, so the walk ends there.
+        while (current != null && !ignoredKeys.contains(t.key(current)))
         {
-            final BSTNode child = current.left;
-            if (child != null && !ignoredKeys.contains(child.key))
+            final N child = t.left(current);
+            if (child != null && !ignoredKeys.contains(t.key(child)))
             {
+                rank -= 1 + sizeOf(t, t.right(child));
                 current = t.rotateRight(current);
-                history.add(new HistoryEntry(Rotation.Right, current.key));
+                history.add(Rotation.Right, rank);
             }
             else
             {
                 // move on to the next node in the right spine
-                current = current.right;
+                current = t.right(current);
+                if (current != null) rank += 1 + sizeOf(t, t.left(current));
+            }
+        }
+    }
+
+    /**
+     * Fold the subtree rooted at current, the right child of the root, into the right forearm.
+     * offset is the number of nodes smaller than everything in the subtree.
+     */
+    private static <N> void foldRightForearm(RotationTree<N> t, N current, int offset, Set<Integer> ignoredKeys, RotationLog history)
+    {
+        if (t instanceof IndexedBST indexed)
+        {
+            foldRightForearm(indexed, current == null ? NodeStore.NIL : (Integer) current, offset, indexed.indicesOf(ignoredKeys), history);
+            return;
+        }
+
+        int rank = offset + (current == null ? 0 : sizeOf(t, t.left(current)));
+        while (current != null && !ignoredKeys.contains(t.key(current)))
+        {
+            final N child = t.right(current);
+            if (child != null && !ignoredKeys.contains(t.key(child)))
+            {
+                rank += 1 + sizeOf(t, t.left(child));
+                current = t.rotateLeft(current);
+                history.add(Rotation.Left, rank);
+            }
+            else
+            {
+                current = t.left(current);
+                if (current != null) rank -= 1 + sizeOf(t, t.right(current));
+            }
+        }
+    }
+
+    /**
+     * foldLeftForearm on the raw indices of an IndexedBST, with the ignored nodes given by index.
+     */
+    private static void foldLeftForearm(IndexedBST t, int current, BitSet ignoredNodes, RotationLog history)
+    {
+        final NodeStore nodes = t.nodes;
+        int rank = current == NodeStore.NIL ? 0 : t.sizeOf(nodes.left(current));
+        while (current != NodeStore.NIL && !ignoredNodes.get(current))
+        {
+            final int child = nodes.left(current);
+            if (child != NodeStore.NIL && !ignoredNodes.get(child))
+            {
+                rank -= 1 + t.sizeOf(nodes.right(child));
+                current = t.rotateRight(current);
+                history.add(Rotation.Right, rank);
+            }
+            else
+            {
+                current = nodes.right(current);
+                if (current != NodeStore.NIL) rank += 1 + t.sizeOf(nodes.left(current));
             }
         }
+    }
 
-        // Fold the right subtree into the right forearm.
-        current = t.root.right;
-        while (current != null)
+    /**
+     * foldRightForearm on the raw indices of an IndexedBST.
+     */
+    private static void foldRightForearm(IndexedBST t, int current, int offset, BitSet ignoredNodes, RotationLog history)
+    {
+        final NodeStore nodes = t.nodes;
+        int rank = offset + (current == NodeStore.NIL ? 0 : t.sizeOf(nodes.left(current)));
+        while (current != NodeStore.NIL && !ignoredNodes.get(current))
         {
-            final BSTNode child = current.right;
-            if (child != null && !ignoredKeys.contains(child.key))
+            final int child = nodes.right(current);
+            if (child != NodeStore.NIL && !ignoredNodes.get(child))
             {
+                rank += 1 + t.sizeOf(nodes.left(child));
                 current = t.rotateLeft(current);
-                history.add(new HistoryEntry(Rotation.Left, current.key));
+                history.add(Rotation.Left, rank);
             }
             else
             {
-                current = current.left;
+                current = nodes.left(current);
+                if (current != NodeStore.NIL) rank -= 1 + t.sizeOf(nodes.right(current));
             }
         }
+    }
 
-        return history;
+    /**
+     * Return the size of the subtree of t rooted at n, which is zero if n is null.
+     */
+    private static <N> int sizeOf(RotationTree<N> t, N n)
+    {
+        return n == null ? 0 : t.size(n);
     }
 
     /**
      * Special case of makeForearms which doesn't ignore any nodes for rotation.
      */
-    static List<HistoryEntry> makeForearms(BST t)
+    static <N> RotationLog makeForearms(RotationTree<N> t)
     {
         return makeForearms(t, new HashSet<>());
     }
@@ -514,20 +1277,21 @@ public class BalanceViaRotation
      * Find index/rank/whatever of a tree with n nodes.
      * Page 3 of paper.
      */
-    private static int computeRootT(final int n)
+    static int computeRootT(final int n)
     {
         // NOTE: h is the number of levels in the tree, NOT the length of the longest path
+        // The powers of two are longs so that 2^h doesn't overflow for the largest n.
         final int h = levels(n);
-        final int twoToHeight = (int) Math.pow(2, h);
-        final int twoToHeightMinusOne = (int) Math.pow(2, h - 1);
-        final int twoToHeightMinusTwo = (int) Math.pow(2, h - 2);
+        final long twoToHeight = 1L << h;
+        final long twoToHeightMinusOne = twoToHeight >> 1;
+        final long twoToHeightMinusTwo = twoToHeight >> 2;
         if (twoToHeightMinusOne <= n && n <= twoToHeightMinusOne + twoToHeightMinusTwo - 2)
         {
-            return n - twoToHeightMinusTwo;
+            return (int) (n - twoToHeightMinusTwo);
         }
         else if (twoToHeightMinusOne + twoToHeightMinusTwo - 1 <= n && n <= twoToHeight - 1)
         {
-            return twoToHeightMinusOne - 1;
+            return (int) (twoToHeightMinusOne - 1);
         }
         else
         {
@@ -541,49 +1305,153 @@ public class BalanceViaRotation
      */
     static BST makeAlmostCompleteBST(Collection<Integer> keys)
     {
+        return makeAlmostCompleteBST(keys.stream().mapToInt(Integer::intValue).sorted().toArray());
+    }
 
-        if (keys.size() == 0) throw new IllegalArgumentException("keys cannot be empty");
+    /**
+     * Create an almost complete binary search tree from a non-empty array of keys in ascending order.
+     * This takes O(n) time and doesn't box anything.
+     */
+    static BST makeAlmostCompleteBST(int[] sortedKeys)
+    {
+        if (sortedKeys.length == 0) throw new IllegalArgumentException("keys cannot be empty");
 
-        BSTNode root = almostCompleteHelper(null,
-                keys.stream().sorted().collect(Collectors.toList()));
+        BSTNode root = almostCompleteHelper(null, sortedKeys, 0, sortedKeys.length);
         return new BST(root);
     }
 
     /**
-     * Recursive helper function for makeAlmostCompleteBST
-     * All the magic happens inside computeRootT.
+     * Create an almost complete binary search tree from a non-empty array of keys in ascending order,
+     * building the subtrees of large ranges of keys in parallel on the given pool.
      */
-    static BSTNode almostCompleteHelper(BSTNode parent, List<Integer> keys)
+    static BST makeAlmostCompleteBST(int[] sortedKeys, ForkJoinPool pool)
     {
-        if (keys.size() == 0)
+        return makeAlmostCompleteBST(sortedKeys, pool, PARALLEL_BUILD_CUTOFF);
+    }
+
+    /**
+     * As above, but ranges of fewer than cutoff keys are built by almostCompleteHelper on one thread.
+     */
+    static BST makeAlmostCompleteBST(int[] sortedKeys, ForkJoinPool pool, int cutoff)
+    {
+        if (sortedKeys.length == 0) throw new IllegalArgumentException("keys cannot be empty");
+
+        BSTNode root = pool.invoke(new AlmostCompleteTask(sortedKeys, 0, sortedKeys.length, Math.max(cutoff, 1)));
+        return new BST(root);
+    }
+
+    /**
+     * Builds the subtree holding sortedKeys[from, to) like almostCompleteHelper, except that for
+     * large ranges the left subtree is forked off as its own task. The key ranges of the two
+     * subtrees don't overlap, so the only shared work is linking them to their parent after
+     * the join.
+     */
+    @SuppressWarnings("serial") // tasks are never serialized, and the nodes couldn't be anyway
+    private static final class AlmostCompleteTask extends RecursiveTask<BSTNode>
+    {
+        private final int[] sortedKeys;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+
+        AlmostCompleteTask(int[] sortedKeys, int from, int to, int cutoff)
+        {
+            this.sortedKeys = sortedKeys;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected BSTNode compute()
+        {
+            if (to - from < cutoff)
+            {
+                return almostCompleteHelper(null, sortedKeys, from, to);
+            }
+
+            int rootIndex = from + computeRootT(to - from);
+            BSTNode root = new BSTNode(sortedKeys[rootIndex]);
+
+            AlmostCompleteTask leftTask = new AlmostCompleteTask(sortedKeys, from, rootIndex, cutoff);
+            leftTask.fork();
+            root.right = new AlmostCompleteTask(sortedKeys, rootIndex + 1, to, cutoff).compute();
+            root.left = leftTask.join();
+
+            if (root.left != null) root.left.parent = root;
+            if (root.right != null) root.right.parent = root;
+            root.size = to - from;
+            return root;
+        }
+    }
+
+    /**
+     * Recursive helper function for makeAlmostCompleteBST, which builds the subtree
+     * holding sortedKeys[from, to). All the magic happens inside computeRootT.
+     */
+    static BSTNode almostCompleteHelper(BSTNode parent, int[] sortedKeys, int from, int to)
+    {
+        if (from == to)
         {
             return null;
         }
         else
         {
-            int rootIndex = computeRootT(keys.size());
-            int rootKey = keys.get(rootIndex);
-            BSTNode root = new BSTNode(rootKey);
+            int rootIndex = from + computeRootT(to - from);
+            BSTNode root = new BSTNode(sortedKeys[rootIndex]);
             root.parent = parent;
 
             // left subtree
-            root.left = almostCompleteHelper(root, keys.subList(0, rootIndex));
+            root.left = almostCompleteHelper(root, sortedKeys, from, rootIndex);
 
             // right subtree
-            root.right = almostCompleteHelper(root, keys.subList(rootIndex + 1, keys.size()));
+            root.right = almostCompleteHelper(root, sortedKeys, rootIndex + 1, to);
 
+            root.size = to - from;
             return root;
         }
     }
 
     /**
-     * Returns the number of levels in an almost complete binary tree of n nodes.
+     * Returns the number of levels in an almost complete binary tree of n nodes,
+     * which is floor(log2(n)) + 1, or the number of bits needed to write n down.
      */
     static int levels(int n)
     {
-        return (int) Math.floor(Utilities.logBase(2, n)) + 1;
+        return Integer.SIZE - Integer.numberOfLeadingZeros(n);
     }
 
+    /**
+     * Return the keys of the tree in ascending order, so that the key of rank r is at index r.
+     */
+    static <N> int[] keysByRank(RotationTree<N> tree)
+    {
+        final int[] keys = new int[tree.size()];
+        tree.inOrder(new Consumer<>()
+        {
+            int rank = 0;
+
+            public void accept(N x)
+            {
+                keys[rank++] = tree.key(x);
+            }
+        });
+        return keys;
+    }
+
+
+    /**
+     * How thoroughly the algorithms check that S and T hold the same keys before rotating.
+     */
+    enum Validation
+    {
+        // only check that S and T are two different trees
+        NONE,
+        // compare the sizes and key fingerprints, which trees keep as keys are inserted
+        FINGERPRINT,
+        // compare the key sets, which takes a walk over both trees and boxes every key
+        FULL
+    }
 
     /**
      * A left or right rotation.
@@ -603,17 +1471,45 @@ public class BalanceViaRotation
     }
 
     /**
-     * Returned by each algorithm.
+     * A subtree detached from S by parallel A3, and the A1 task working on it.
      */
-    record Statistic(int rotationsActual, int rotationsExpected) { }
+    private record ForkedA1<N>(N parent, boolean left, RotationTree<N> subtree, ForkJoinTask<Statistic> task) { }
 
     /**
-     * A record of a node's rotation, which includes the node's key and the rotation type (left/right).
+     * Returned by each algorithm, along with a breakdown of where the time and rotations went.
+     * The breakdown is a measurement rather than part of the result, so it is left out of equals.
      */
-    record HistoryEntry(Rotation rotation, int key) { }
+    record Statistic(int rotationsActual, int rotationsExpected, PhaseStats phases)
+    {
+        Statistic(int rotationsActual, int rotationsExpected)
+        {
+            this(rotationsActual, rotationsExpected, new PhaseStats());
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof Statistic)) return false;
+            Statistic that = (Statistic) o;
+            return rotationsActual == that.rotationsActual && rotationsExpected == that.rotationsExpected;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * rotationsActual + rotationsExpected;
+        }
+    }
 
     /**
      * A vertex interval.
      */
     record VertexInterval(int min, int max) { }
+
+    /**
+     * Vertex intervals for a whole tree: the node of rank r holds keys[r] and
+     * covers the ranks from min[r] to max[r].
+     */
+    record RankIntervals(int[] keys, int[] min, int[] max) { }
 }
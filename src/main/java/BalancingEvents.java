@@ -0,0 +1,102 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the balancing algorithms, so a recording shows where the
+ * time went next to what the GC and the CPUs were doing.
+ * <p>
+ * Every phase of A1, A2 and A3 is reported as a PhaseEvent by PhaseStats. Individual
+ * rotations are reported as RotationEvents, but only a sample of them and only when the
+ * event is switched on in the recording's settings, for example with
+ * {@code jfr configure +balancing.Rotation#enabled=true}. When no recording is running
+ * neither costs more than a check.
+ */
+final class BalancingEvents
+{
+    // one rotation in this many is reported
+    static final int ROTATION_SAMPLE_INTERVAL = Integer.getInteger("balancing.rotationSampleInterval", 1024);
+
+    private static final EventType ROTATION_EVENT_TYPE = EventType.getEventType(RotationEvent.class);
+
+    private BalancingEvents()
+    {
+    }
+
+    @Name("balancing.Phase")
+    @Label("Balancing Phase")
+    @Category("Balancing")
+    @Description("A phase of one of the balancing algorithms")
+    static final class PhaseEvent extends Event
+    {
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Nodes")
+        int n;
+
+        @Label("Rotations")
+        long rotations;
+
+        @Label("Lookups")
+        @Description("The nodes that search and select visited during the phase")
+        long lookups;
+
+        @Label("Height")
+        @Description("The height of the tree being balanced when the phase ended")
+        int height;
+    }
+
+    @Name("balancing.Rotation")
+    @Label("Rotation")
+    @Category("Balancing")
+    @Description("A sampled rotation")
+    @Enabled(false)
+    static final class RotationEvent extends Event
+    {
+        @Label("Pivot Key")
+        int key;
+
+        @Label("Direction")
+        String direction;
+
+        @Label("Depth")
+        int depth;
+    }
+
+    /**
+     * Return an observer that reports about one rotation in every interval as a RotationEvent,
+     * or RotationObserver.NONE if rotation events are switched off right now. The sample is
+     * drawn at random rather than counted, so the observer needs no shared state across threads,
+     * and only the sampled rotations pay for working out their depth.
+     */
+    static RotationObserver sampledRotations(int interval)
+    {
+        if (interval < 1) throw new IllegalArgumentException("interval must be positive");
+        if (!ROTATION_EVENT_TYPE.isEnabled()) return RotationObserver.NONE;
+
+        return (tree, pivot, direction) ->
+        {
+            // decide first, since the depth takes a walk up to the root
+            if (ThreadLocalRandom.current().nextInt(interval) != 0) return;
+
+            RotationEvent event = new RotationEvent();
+            if (event.shouldCommit())
+            {
+                event.key = pivot.key;
+                event.direction = direction.name();
+                event.depth = tree.depth(pivot) - 1;
+                event.commit();
+            }
+        };
+    }
+}
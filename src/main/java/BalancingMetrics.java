@@ -0,0 +1,338 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Running totals of what the balancing algorithms have done, for watching a long-lived process
+ * over JMX. Call register to publish them under {@value #OBJECT_NAME}.
+ * <p>
+ * A1, A2 and A3 report each call through measure, and PhaseStats reports each phase. Calls the
+ * algorithms make of each other (A2 falling back to A1, say) count towards the phases but not
+ * as calls of their own. Everything is kept in LongAdders, so the threads balancing trees never
+ * wait on each other or on whoever is reading the numbers.
+ */
+public final class BalancingMetrics implements BalancingMetricsMBean
+{
+    static final String OBJECT_NAME = "balancing:type=BalancingMetrics";
+
+    private static final BalanceViaRotation.Algorithm[] ALGORITHMS = BalanceViaRotation.Algorithm.values();
+    private static final PhaseStats.Phase[] PHASES = PhaseStats.Phase.values();
+
+    // null if the JVM can't count the bytes each thread allocates
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+    // after the constants above, which the constructor uses
+    static final BalancingMetrics INSTANCE = new BalancingMetrics();
+
+    private final LongAdder rotations = new LongAdder();
+    private final RecentRate recentRotations = new RecentRate();
+    private final LongAdder[] calls = new LongAdder[ALGORITHMS.length];
+    private final RecentRate recentCalls = new RecentRate();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAccumulator largestN = new LongAccumulator(Math::max, 0);
+    private final LongAdder bytesAllocated = new LongAdder();
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+    private BalancingMetrics()
+    {
+        for (int i = 0; i < calls.length; i++) calls[i] = new LongAdder();
+        for (int i = 0; i < phases.length; i++) phases[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, unless they already are.
+     */
+    static void register()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        }
+        catch (InstanceAlreadyExistsException e)
+        {
+            // someone beat us to it, which is just as good
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException("could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter()
+    {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+        {
+            return threads;
+        }
+        return null;
+    }
+
+    /**
+     * Run one call of algorithm on a tree of n nodes, counting it along the way. Only the
+     * calling thread's allocations are counted, not those of any tasks it hands to a pool.
+     */
+    BalanceViaRotation.Statistic measure(BalanceViaRotation.Algorithm algorithm, int n, Supplier<BalanceViaRotation.Statistic> call)
+    {
+        calls[algorithm.ordinal()].increment();
+        recentCalls.add(1);
+        largestN.accumulate(n);
+        inFlight.increment();
+        final long bytesBefore = THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+        try
+        {
+            return call.get();
+        }
+        finally
+        {
+            if (THREADS != null) bytesAllocated.add(THREADS.getCurrentThreadAllocatedBytes() - bytesBefore);
+            inFlight.decrement();
+        }
+    }
+
+    /**
+     * Count a finished phase.
+     */
+    void recordPhase(PhaseStats.Phase phase, long nanos, long rotations)
+    {
+        phases[phase.ordinal()].add(nanos);
+        if (rotations > 0)
+        {
+            this.rotations.add(rotations);
+            recentRotations.add(rotations);
+        }
+    }
+
+    public long getRotations()
+    {
+        return rotations.sum();
+    }
+
+    public double getRotationsPerSecond()
+    {
+        return recentRotations.perSecond();
+    }
+
+    public long getA1Calls()
+    {
+        return calls[BalanceViaRotation.Algorithm.A1.ordinal()].sum();
+    }
+
+    public long getA2Calls()
+    {
+        return calls[BalanceViaRotation.Algorithm.A2.ordinal()].sum();
+    }
+
+    public long getA3Calls()
+    {
+        return calls[BalanceViaRotation.Algorithm.A3.ordinal()].sum();
+    }
+
+    public double getCallsPerSecond()
+    {
+        return recentCalls.perSecond();
+    }
+
+    public long getTreesInFlight()
+    {
+        return inFlight.sum();
+    }
+
+    public long getLargestN()
+    {
+        return largestN.get();
+    }
+
+    public double getMeanBytesAllocatedPerCall()
+    {
+        if (THREADS == null) return -1;
+        long total = 0;
+        for (LongAdder c : calls) total += c.sum();
+        return total == 0 ? 0 : (double) bytesAllocated.sum() / total;
+    }
+
+    public double getSetupMeanNanos()
+    {
+        return phases[PhaseStats.Phase.SETUP.ordinal()].mean();
+    }
+
+    public long getSetupP99Nanos()
+    {
+        return phases[PhaseStats.Phase.SETUP.ordinal()].percentile(0.99);
+    }
+
+    public double getMatchMeanNanos()
+    {
+        return phases[PhaseStats.Phase.MATCH.ordinal()].mean();
+    }
+
+    public long getMatchP99Nanos()
+    {
+        return phases[PhaseStats.Phase.MATCH.ordinal()].percentile(0.99);
+    }
+
+    public double getRootMeanNanos()
+    {
+        return phases[PhaseStats.Phase.ROOT.ordinal()].mean();
+    }
+
+    public long getRootP99Nanos()
+    {
+        return phases[PhaseStats.Phase.ROOT.ordinal()].percentile(0.99);
+    }
+
+    public double getFoldMeanNanos()
+    {
+        return phases[PhaseStats.Phase.FOLD.ordinal()].mean();
+    }
+
+    public long getFoldP99Nanos()
+    {
+        return phases[PhaseStats.Phase.FOLD.ordinal()].percentile(0.99);
+    }
+
+    public double getUnfoldMeanNanos()
+    {
+        return phases[PhaseStats.Phase.UNFOLD.ordinal()].mean();
+    }
+
+    public long getUnfoldP99Nanos()
+    {
+        return phases[PhaseStats.Phase.UNFOLD.ordinal()].percentile(0.99);
+    }
+
+    /**
+     * Counts per second over the last few whole seconds, kept in a ring of one-second buckets.
+     * The first add in a new second claims its bucket and clears it, and adds racing with the
+     * clear may be lost. That's fine for a dashboard, and it keeps adds free of locks.
+     */
+    static final class RecentRate
+    {
+        // one bucket for the second under way, and the rest for the window
+        private static final int SECONDS = 10;
+        private static final int BUCKETS = SECONDS + 1;
+
+        private final AtomicLongArray second = new AtomicLongArray(BUCKETS);
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+        RecentRate()
+        {
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                counts[i] = new LongAdder();
+                second.set(i, Long.MIN_VALUE);
+            }
+        }
+
+        void add(long x)
+        {
+            final long now = now();
+            final int i = (int) Math.floorMod(now, (long) BUCKETS);
+            final long claimed = second.get(i);
+            if (claimed != now && second.compareAndSet(i, claimed, now))
+            {
+                counts[i].reset();
+            }
+            counts[i].add(x);
+        }
+
+        double perSecond()
+        {
+            final long now = now();
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                final long s = second.get(i);
+                if (s < now && s >= now - SECONDS) total += counts[i].sum();
+            }
+            return (double) total / SECONDS;
+        }
+
+        private static long now()
+        {
+            return System.nanoTime() / 1_000_000_000L;
+        }
+    }
+
+    /**
+     * A histogram of latencies with four buckets per power of two, so percentiles come out
+     * within 25% of the truth. A percentile is reported as the top of its bucket.
+     */
+    static final class LatencyHistogram
+    {
+        private static final int SUB_BUCKETS = 4;
+
+        private final LongAdder[] counts = new LongAdder[SUB_BUCKETS * 63];
+        private final LongAdder total = new LongAdder();
+
+        LatencyHistogram()
+        {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void add(long nanos)
+        {
+            counts[bucket(Math.max(nanos, 0))].increment();
+            total.add(nanos);
+        }
+
+        double mean()
+        {
+            long n = 0;
+            for (LongAdder c : counts) n += c.sum();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+
+        /**
+         * Return the smallest bucket top that at least fraction of the latencies are no bigger than.
+         */
+        long percentile(double fraction)
+        {
+            final long[] snapshot = new long[counts.length];
+            long n = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                snapshot[i] = counts[i].sum();
+                n += snapshot[i];
+            }
+            if (n == 0) return 0;
+
+            final long wanted = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++)
+            {
+                seen += snapshot[i];
+                if (seen >= wanted) return top(i);
+            }
+            return top(snapshot.length - 1);
+        }
+
+        /**
+         * Values below 4 get a bucket each. Otherwise the bucket is picked by the highest set
+         * bit and the two bits below it.
+         */
+        static int bucket(long v)
+        {
+            if (v < SUB_BUCKETS) return (int) v;
+            final int exponent = 63 - Long.numberOfLeadingZeros(v);
+            final int sub = (int) (v >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS * (exponent - 1) + sub;
+        }
+
+        /**
+         * Return the largest value that falls in bucket i.
+         */
+        static long top(int i)
+        {
+            if (i < SUB_BUCKETS) return i;
+            final int exponent = i / SUB_BUCKETS + 1;
+            final long width = 1L << (exponent - 2);
+            return (SUB_BUCKETS + i % SUB_BUCKETS) * width + width - 1;
+        }
+    }
+}
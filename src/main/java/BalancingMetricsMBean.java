@@ -0,0 +1,47 @@
+/**
+ * The JMX view of BalancingMetrics. Rates are over the last ten whole seconds, everything
+ * else is since the JVM started. Latencies are in nanoseconds.
+ */
+public interface BalancingMetricsMBean
+{
+    long getRotations();
+
+    double getRotationsPerSecond();
+
+    long getA1Calls();
+
+    long getA2Calls();
+
+    long getA3Calls();
+
+    double getCallsPerSecond();
+
+    long getTreesInFlight();
+
+    long getLargestN();
+
+    /**
+     * Bytes allocated by the calling thread per call, or -1 if the JVM can't tell.
+     */
+    double getMeanBytesAllocatedPerCall();
+
+    double getSetupMeanNanos();
+
+    long getSetupP99Nanos();
+
+    double getMatchMeanNanos();
+
+    long getMatchP99Nanos();
+
+    double getRootMeanNanos();
+
+    long getRootP99Nanos();
+
+    double getFoldMeanNanos();
+
+    long getFoldP99Nanos();
+
+    double getUnfoldMeanNanos();
+
+    long getUnfoldP99Nanos();
+}
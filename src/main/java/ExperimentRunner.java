@@ -0,0 +1,151 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the experiment trials, each pairing of algorithm and n being tried a number of times.
+ * Every trial builds its own trees, so the trials are independent and run as separate tasks
+ * on a fixed pool of threads.
+ * <p>
+ * Each trial's seed is drawn from the master seed before anything runs, and the results come
+ * back in the order the trials were listed. So the same master seed gives the same results no
+ * matter how many threads there are or how they get scheduled.
+ */
+final class ExperimentRunner
+{
+    /**
+     * The ith trial of algorithm on n keys, which generates S from the given source using the given seed.
+     */
+    record Trial(BalanceViaRotation.Algorithm algorithm, int n, TreeGenerators.Source source, int i, long seed) { }
+
+    /**
+     * The outcome of a trial, with the heights of S and T before the algorithm ran.
+     */
+    record Result(Trial trial, BalanceViaRotation.Statistic statistic, int heightS, int heightT) { }
+
+    // how many trials per thread may be submitted ahead of the oldest unfinished one
+    private static final int WINDOW_PER_THREAD = 4;
+
+    private ExperimentRunner()
+    {
+    }
+
+    /**
+     * List the trials for every n and algorithm, in that order, giving each a seed drawn from seed.
+     * S is a randomly perturbed almost complete tree.
+     */
+    static List<Trial> trials(List<Integer> sizes, List<BalanceViaRotation.Algorithm> algorithms, int trialsEach, long seed)
+    {
+        return trials(sizes, List.of(TreeGenerators.Source.PERTURBED), algorithms, trialsEach, seed);
+    }
+
+    /**
+     * List the trials for every n, source and algorithm, in that order, giving each a seed drawn from seed.
+     */
+    static List<Trial> trials(List<Integer> sizes, List<TreeGenerators.Source> sources,
+                              List<BalanceViaRotation.Algorithm> algorithms, int trialsEach, long seed)
+    {
+        SplittableRandom seeds = new SplittableRandom(seed);
+        List<Trial> trials = new ArrayList<>();
+        for (int n : sizes)
+        {
+            for (TreeGenerators.Source source : sources)
+            {
+                for (BalanceViaRotation.Algorithm algorithm : algorithms)
+                {
+                    for (int i = 0; i < trialsEach; i++)
+                    {
+                        trials.add(new Trial(algorithm, n, source, i, seeds.nextLong()));
+                    }
+                }
+            }
+        }
+        return trials;
+    }
+
+    /**
+     * Run the trials on at most parallelism threads, returning the results in the same order as the trials.
+     */
+    static List<Result> run(List<Trial> trials, int parallelism)
+    {
+        List<Result> results = new ArrayList<>(trials.size());
+        run(trials, parallelism, results::add);
+        return results;
+    }
+
+    /**
+     * Run the trials on at most parallelism threads, passing the results to sink in the same order
+     * as the trials. Only a few trials per thread are in flight at once, so results stream out
+     * steadily and are not all held in memory.
+     */
+    static void run(List<Trial> trials, int parallelism, ResultSink sink)
+    {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(trials.size(), 1)));
+        try
+        {
+            final int window = WINDOW_PER_THREAD * parallelism;
+            Deque<Future<Result>> pending = new ArrayDeque<>(window);
+            for (Trial trial : trials)
+            {
+                if (pending.size() == window)
+                {
+                    sink.accept(pending.removeFirst().get());
+                }
+                pending.addLast(executor.submit(() -> run(trial)));
+            }
+            while (!pending.isEmpty())
+            {
+                sink.accept(pending.removeFirst().get());
+            }
+            sink.flush();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while running trials", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            if (e.getCause() instanceof Error cause) throw cause;
+            throw new IllegalStateException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run a single trial on the calling thread.
+     */
+    static Result run(Trial trial)
+    {
+        // create the trees
+        BST S = trial.source.generate(trial.n, new SplittableRandom(trial.seed));
+        BST T = BalanceViaRotation.makeAlmostCompleteBST(IntStream.range(0, trial.n).toArray());
+
+        final int heightS = S.height();
+        final int heightT = T.height();
+
+        // only does anything when a flight recording has rotation events switched on
+        S.setRotationObserver(BalancingEvents.sampledRotations(BalancingEvents.ROTATION_SAMPLE_INTERVAL));
+
+        BalanceViaRotation.Statistic stat = switch (trial.algorithm)
+        {
+            case A1 -> BalanceViaRotation.A1(S, T);
+            case A2 -> BalanceViaRotation.A2(S, T);
+            case A3 -> BalanceViaRotation.A3(S, T);
+        };
+        return new Result(trial, stat, heightS, heightT);
+    }
+}
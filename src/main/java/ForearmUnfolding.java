@@ -0,0 +1,149 @@
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * The rotations that turn a tree of forearms back into an almost complete tree of n nodes,
+ * worked out from n alone. The entries are exactly those of the RotationLog that makeForearms
+ * would record on the almost complete tree, newest first, so they can be fed straight to
+ * applyInvertedRotations without ever building the almost complete tree.
+ * <p>
+ * Folding the left subtree of the root walks down its right spine and, at each spine node,
+ * rotates up the nodes of its left subtree in pre-order (skipping ignored nodes along with
+ * their subtrees). The walk stops at an ignored spine node, since that subtree is left alone
+ * too. Reversing a pre-order gives a post-order that visits the right child first, and the
+ * spine comes out bottom up if we treat it as part of that walk without emitting it.
+ * The right subtree is the mirror image. The subtrees of an almost complete tree are almost
+ * complete too, so a node is just a range of ranks and computeRootT gives its root. The only
+ * state is a stack of ranges, which is never deeper than twice the height of the tree.
+ */
+final class ForearmUnfolding implements PrimitiveIterator.OfInt
+{
+    // flags kept with each range on the stack
+    private static final int EXPANDED = 1;  // the children have been pushed
+    private static final int SPINE = 2;     // on the spine, so never emitted
+    private static final int LEFT_SIDE = 4; // in the left subtree of the root
+
+    private final BitSet ignoredRanks;
+
+    // the stack of rank ranges [from, to) still to be walked
+    private final int[] from;
+    private final int[] to;
+    private final int[] flags;
+    private int depth = 0;
+
+    // the next entry to hand out, or -1 if we are done
+    private int next;
+
+    /**
+     * Unfold forearms into an almost complete tree of n nodes, without rotating
+     * the nodes whose ranks are set in ignoredRanks.
+     */
+    ForearmUnfolding(int n, BitSet ignoredRanks)
+    {
+        this(n, ignoredRanks, true, true);
+    }
+
+    /**
+     * Unfold only the left forearm of the root. The two sides share no nodes, so they can be
+     * unfolded at the same time.
+     */
+    static ForearmUnfolding leftSide(int n, BitSet ignoredRanks)
+    {
+        return new ForearmUnfolding(n, ignoredRanks, true, false);
+    }
+
+    /**
+     * Unfold only the right forearm of the root.
+     */
+    static ForearmUnfolding rightSide(int n, BitSet ignoredRanks)
+    {
+        return new ForearmUnfolding(n, ignoredRanks, false, true);
+    }
+
+    private ForearmUnfolding(int n, BitSet ignoredRanks, boolean left, boolean right)
+    {
+        this.ignoredRanks = ignoredRanks;
+        final int capacity = 2 * BalanceViaRotation.levels(n) + 2;
+        from = new int[capacity];
+        to = new int[capacity];
+        flags = new int[capacity];
+
+        // The right subtree was folded last, so it is unfolded first. If the root is ignored
+        // then so is the whole tree, and there is nothing to unfold.
+        final int root = BalanceViaRotation.computeRootT(n);
+        if (left && !ignoredRanks.get(root)) push(0, root, SPINE | LEFT_SIDE);
+        if (right && !ignoredRanks.get(root)) push(root + 1, n, SPINE);
+        next = advance();
+    }
+
+    public boolean hasNext()
+    {
+        return next >= 0;
+    }
+
+    public int nextInt()
+    {
+        if (next < 0) throw new NoSuchElementException();
+        final int entry = next;
+        next = advance();
+        return entry;
+    }
+
+    /**
+     * Walk on to the next node that was rotated up and return its entry, or -1 if there are none.
+     */
+    private int advance()
+    {
+        while (depth > 0)
+        {
+            final int top = depth - 1;
+            final int lo = from[top];
+            final int hi = to[top];
+            final int f = flags[top];
+            final int rank = lo + BalanceViaRotation.computeRootT(hi - lo);
+            final boolean leftSide = (f & LEFT_SIDE) != 0;
+
+            if ((f & EXPANDED) != 0)
+            {
+                // both children are done, so this node is next in post-order
+                depth--;
+                if ((f & SPINE) == 0)
+                {
+                    return RotationLog.pack(leftSide ? BalanceViaRotation.Rotation.Right : BalanceViaRotation.Rotation.Left, rank);
+                }
+            }
+            else if (ignoredRanks.get(rank))
+            {
+                // never rotated, and neither was anything below it, even on the spine
+                depth--;
+            }
+            else
+            {
+                // Visit the spine child first: the right child on the left side and vice versa.
+                flags[top] = f | EXPANDED;
+                final int side = f & LEFT_SIDE;
+                if (leftSide)
+                {
+                    push(lo, rank, side);
+                    push(rank + 1, hi, side | (f & SPINE));
+                }
+                else
+                {
+                    push(rank + 1, hi, side);
+                    push(lo, rank, side | (f & SPINE));
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void push(int lo, int hi, int f)
+    {
+        if (lo == hi) return;
+        from[depth] = lo;
+        to[depth] = hi;
+        flags[depth] = f;
+        depth++;
+    }
+}
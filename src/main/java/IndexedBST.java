@@ -0,0 +1,681 @@
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A non-empty binary search tree whose nodes live in a NodeStore (parallel int arrays on the heap,
+ * or records off-heap) and are referred to by index. It offers the same operations as BST, but
+ * is much more compact, which matters once trees have millions of nodes.
+ * Duplicate nodes are not permitted.
+ * <p>
+ * The primitive methods (rotateLeft(int), searchIndex, ...) work on raw indices with NIL for
+ * "no node". The RotationTree methods box the indices and use null instead.
+ */
+public class IndexedBST implements RotationTree<Integer>
+{
+    private static final int NIL = NodeStore.NIL;
+
+    // the node storage, which may be shared with subtree views of this tree
+    final NodeStore nodes;
+
+    // index of the root node
+    int root = NIL;
+
+    // optional map from keys to nodes, see indexKeys
+    private IntNodeIndex index;
+
+    // see nodesVisited
+    private long nodesVisited = 0;
+
+    // see keyFingerprint, only meaningful while keyFingerprintValid
+    private long keyFingerprint = 0;
+    private boolean keyFingerprintValid = false;
+
+    /**
+     * The only (public) way to construct this tree is with a non-empty list of keys.
+     */
+    public IndexedBST(Collection<Integer> keys)
+    {
+        this(new NodeArrays(keys.size()), keys);
+    }
+
+    /**
+     * Construct the tree by inserting the keys into the given (empty) node store.
+     */
+    IndexedBST(NodeStore nodes, Collection<Integer> keys)
+    {
+        if (keys.isEmpty()) throw new IllegalArgumentException("keys cannot be empty");
+        this.nodes = nodes;
+
+        // with no keys yet, insert can keep the fingerprint up to date from the start
+        keyFingerprintValid = true;
+        keys.forEach(this::insert);
+    }
+
+    /**
+     * Used for subtree views and copies.
+     */
+    IndexedBST(NodeStore nodes, int root)
+    {
+        if (root == NIL) throw new IllegalArgumentException();
+        this.nodes = nodes;
+        this.root = root;
+    }
+
+    /**
+     * Create an IndexedBST with the same shape and keys as the given tree.
+     */
+    static <N> IndexedBST copyOf(RotationTree<N> tree)
+    {
+        return copyOf(tree, new NodeArrays(tree.size()));
+    }
+
+    /**
+     * Create an IndexedBST with the same shape and keys as the given tree, adding its nodes
+     * to the given node store. The store needn't be empty.
+     */
+    static <N> IndexedBST copyOf(RotationTree<N> tree, NodeStore nodes)
+    {
+        final int n = tree.size();
+
+        // Copy the nodes in pre-order so that each node's parent is copied before it.
+        // Alongside each pending node we remember the index of its copied parent, negated
+        // (and offset by one) for left children.
+        Deque<N> pending = new ArrayDeque<>();
+        int[] pendingParents = new int[n];
+        int top = 0;
+        int root = NIL;
+
+        pending.push(tree.root());
+        pendingParents[top++] = Integer.MAX_VALUE;
+        while (!pending.isEmpty())
+        {
+            N x = pending.pop();
+            int link = pendingParents[--top];
+            int copy = nodes.add(tree.key(x));
+            nodes.setSize(copy, tree.size(x));
+            if (link == Integer.MAX_VALUE)
+            {
+                root = copy;
+            }
+            else
+            {
+                int p = link < 0 ? -link - 1 : link;
+                nodes.setParent(copy, p);
+                if (link < 0) nodes.setLeft(p, copy);
+                else nodes.setRight(p, copy);
+            }
+
+            N right = tree.right(x);
+            if (right != null)
+            {
+                pending.push(right);
+                pendingParents[top++] = copy;
+            }
+            N left = tree.left(x);
+            if (left != null)
+            {
+                pending.push(left);
+                pendingParents[top++] = -copy - 1;
+            }
+        }
+
+        return new IndexedBST(nodes, root);
+    }
+
+    /**
+     * Create an almost complete IndexedBST from a non-empty array of keys in ascending order,
+     * adding its nodes to the given node store. The tree has the same shape as the one
+     * made by BalanceViaRotation.makeAlmostCompleteBST.
+     */
+    static IndexedBST almostComplete(int[] sortedKeys, NodeStore nodes)
+    {
+        if (sortedKeys.length == 0) throw new IllegalArgumentException("keys cannot be empty");
+        return new IndexedBST(nodes, almostCompleteHelper(nodes, NIL, sortedKeys, 0, sortedKeys.length));
+    }
+
+    /**
+     * Recursive helper for almostComplete, which builds the subtree holding sortedKeys[from, to).
+     * The recursion is only as deep as the tree is tall, which is logarithmic.
+     */
+    private static int almostCompleteHelper(NodeStore nodes, int parent, int[] sortedKeys, int from, int to)
+    {
+        if (from == to) return NIL;
+
+        int rootIndex = from + BalanceViaRotation.computeRootT(to - from);
+        int root = nodes.add(sortedKeys[rootIndex]);
+        nodes.setParent(root, parent);
+        nodes.setSize(root, to - from);
+        nodes.setLeft(root, almostCompleteHelper(nodes, root, sortedKeys, from, rootIndex));
+        nodes.setRight(root, almostCompleteHelper(nodes, root, sortedKeys, rootIndex + 1, to));
+        return root;
+    }
+
+    /**
+     * Return the number of nodes in the binary search tree.
+     */
+    public int size()
+    {
+        return nodes.size(root);
+    }
+
+    /**
+     * Returns the height of this tree, which is the number of edges on the longest path from
+     * the root to a leaf.
+     */
+    public int height()
+    {
+        // pre-order walk using the parent links, tracking the depth of the current node
+        int x = root;
+        int depth = 0;
+        int height = 0;
+        descend:
+        while (true)
+        {
+            height = Math.max(height, depth);
+            if (nodes.left(x) != NIL)
+            {
+                x = nodes.left(x);
+                depth++;
+                continue;
+            }
+            if (nodes.right(x) != NIL)
+            {
+                x = nodes.right(x);
+                depth++;
+                continue;
+            }
+
+            // x is a leaf, so climb until we find a right subtree we haven't walked yet
+            while (x != root)
+            {
+                int p = nodes.parent(x);
+                if (nodes.left(p) == x && nodes.right(p) != NIL)
+                {
+                    x = nodes.right(p);
+                    continue descend;
+                }
+                x = p;
+                depth--;
+            }
+            return height;
+        }
+    }
+
+    /**
+     * Insert a new node into this tree.
+     * <p>
+     * works cited: CLRS 12.3
+     *
+     * @param newKey New key to add to the tree.
+     * @throws IllegalArgumentException If the given key is already in the tree.
+     */
+    public void insert(int newKey)
+    {
+        int parent = NIL;
+        int currentNode = root;
+        while (currentNode != NIL)
+        {
+            parent = currentNode;
+            if (newKey < nodes.key(currentNode))
+            {
+                currentNode = nodes.left(currentNode);
+            }
+            else if (newKey > nodes.key(currentNode))
+            {
+                currentNode = nodes.right(currentNode);
+            }
+            else
+            {
+                throw new IllegalArgumentException("key " + newKey + " already in tree!");
+            }
+        }
+
+        int newNode = nodes.add(newKey);
+        nodes.setParent(newNode, parent);
+        if (parent == NIL)
+        {
+            root = newNode;
+        }
+        else if (newKey < nodes.key(parent))
+        {
+            nodes.setLeft(parent, newNode);
+        }
+        else
+        {
+            nodes.setRight(parent, newNode);
+        }
+        if (keyFingerprintValid)
+        {
+            keyFingerprint += RotationTree.fingerprint(newKey);
+        }
+        if (index != null)
+        {
+            index.put(newKey, newNode);
+        }
+
+        // every ancestor of the new node gained one descendant
+        for (int walk = parent; walk != NIL; walk = nodes.parent(walk))
+        {
+            nodes.setSize(walk, nodes.size(walk) + 1);
+        }
+    }
+
+    /**
+     * Return the index of the node with the given key, or NIL if there is none.
+     */
+    int searchIndex(int key)
+    {
+        if (index != null)
+        {
+            int x = index.get(key);
+            if (x != NIL) nodesVisited++;
+            return x;
+        }
+
+        int x = root;
+        while (x != NIL)
+        {
+            nodesVisited++;
+            if (nodes.key(x) == key) break;
+            x = key < nodes.key(x) ? nodes.left(x) : nodes.right(x);
+        }
+        return x;
+    }
+
+    /**
+     * Return the index of the node of rank i, or NIL if the rank is invalid.
+     */
+    int selectIndex(int i)
+    {
+        if (i < 0 || i > size() - 1) return NIL;
+
+        int x = root;
+        while (true)
+        {
+            nodesVisited++;
+            int r = sizeOf(nodes.left(x));
+            if (i == r)
+            {
+                return x;
+            }
+            else if (i < r)
+            {
+                x = nodes.left(x);
+            }
+            else
+            {
+                i -= r + 1;
+                x = nodes.right(x);
+            }
+        }
+    }
+
+    /**
+     * Left rotate the edge whose endpoints are x and x's right child;
+     * Return the new parent.
+     * <p>
+     * Works cited: CLRS 13.2
+     */
+    @SuppressWarnings("SuspiciousNameCombination")
+    int rotateLeft(int x)
+    {
+        int y = nodes.right(x);
+        int b = nodes.left(y);
+        nodes.setRight(x, b);
+        if (b != NIL)
+        {
+            nodes.setParent(b, x);
+        }
+
+        int p = nodes.parent(x);
+        nodes.setParent(y, p);
+        if (p != NIL)
+        {
+            if (nodes.left(p) == x) nodes.setLeft(p, y);
+            else nodes.setRight(p, y);
+        }
+        if (x == root)
+        {
+            root = y;
+        }
+        nodes.setLeft(y, x);
+        nodes.setParent(x, y);
+
+        nodes.setSize(y, nodes.size(x));
+        nodes.setSize(x, 1 + sizeOf(nodes.left(x)) + sizeOf(b));
+        return y;
+    }
+
+    /**
+     * Right rotate the edge whose endpoints are y and y's left child;
+     * Return the new parent.
+     * <p>
+     * Works cited: done as solution to 13.2-1 in CLRS
+     */
+    @SuppressWarnings("SuspiciousNameCombination")
+    int rotateRight(int y)
+    {
+        int x = nodes.left(y);
+        int b = nodes.right(x);
+        nodes.setLeft(y, b);
+        if (b != NIL)
+        {
+            nodes.setParent(b, y);
+        }
+
+        int p = nodes.parent(y);
+        nodes.setParent(x, p);
+        if (p != NIL)
+        {
+            if (nodes.right(p) == y) nodes.setRight(p, x);
+            else nodes.setLeft(p, x);
+        }
+        if (y == root)
+        {
+            root = x;
+        }
+        nodes.setRight(x, y);
+        nodes.setParent(y, x);
+
+        nodes.setSize(x, nodes.size(y));
+        nodes.setSize(y, 1 + sizeOf(b) + sizeOf(nodes.right(y)));
+        return x;
+    }
+
+    /**
+     * Perform an in-order walk of the tree, passing each node's index to visit.
+     */
+    void inOrderIndices(IntConsumer visit)
+    {
+        for (int x = minimum(root); x != NIL; x = successor(x))
+        {
+            visit.accept(x);
+        }
+    }
+
+    /**
+     * Perform a post-order walk of the tree, passing each node's index to visit.
+     */
+    void postOrderIndices(IntConsumer visit)
+    {
+        int x = firstInPostOrder(root);
+        while (true)
+        {
+            visit.accept(x);
+            if (x == root) return;
+
+            int p = nodes.parent(x);
+            if (nodes.left(p) == x && nodes.right(p) != NIL)
+            {
+                x = firstInPostOrder(nodes.right(p));
+            }
+            else
+            {
+                x = p;
+            }
+        }
+    }
+
+    /**
+     * Return the smallest node in the subtree rooted at x.
+     */
+    private int minimum(int x)
+    {
+        while (nodes.left(x) != NIL) x = nodes.left(x);
+        return x;
+    }
+
+    /**
+     * Return the node following x in an in-order walk of this tree, or NIL if x is the last.
+     */
+    private int successor(int x)
+    {
+        if (nodes.right(x) != NIL) return minimum(nodes.right(x));
+        while (x != root)
+        {
+            int p = nodes.parent(x);
+            if (nodes.left(p) == x) return p;
+            x = p;
+        }
+        return NIL;
+    }
+
+    /**
+     * Return the node visited first by a post-order walk of the subtree rooted at x.
+     */
+    private int firstInPostOrder(int x)
+    {
+        while (true)
+        {
+            if (nodes.left(x) != NIL) x = nodes.left(x);
+            else if (nodes.right(x) != NIL) x = nodes.right(x);
+            else return x;
+        }
+    }
+
+    /**
+     * Return the size of the subtree rooted at x, which is zero if x is NIL.
+     */
+    int sizeOf(int x)
+    {
+        return x == NIL ? 0 : nodes.size(x);
+    }
+
+    /**
+     * Return the set of indices of the nodes holding the given keys, skipping keys we can't find.
+     */
+    BitSet indicesOf(Set<Integer> keys)
+    {
+        BitSet indices = new BitSet(nodes.count());
+        for (int k : keys)
+        {
+            int x = searchIndex(k);
+            if (x != NIL) indices.set(x);
+        }
+        return indices;
+    }
+
+    private static Integer box(int x)
+    {
+        return x == NIL ? null : x;
+    }
+
+    public Integer root()
+    {
+        return root;
+    }
+
+    public Integer left(Integer x)
+    {
+        return box(nodes.left(x));
+    }
+
+    public Integer right(Integer x)
+    {
+        return box(nodes.right(x));
+    }
+
+    public Integer parent(Integer x)
+    {
+        return box(nodes.parent(x));
+    }
+
+    public int key(Integer x)
+    {
+        return nodes.key(x);
+    }
+
+    public int size(Integer x)
+    {
+        return nodes.size(x);
+    }
+
+    /**
+     * Build an index of the nodes by key, after which search takes O(1) instead of O(h).
+     * Rotations don't move keys between nodes and insert keeps the index up to date,
+     * so it never has to be rebuilt.
+     */
+    @Override
+    public void indexKeys()
+    {
+        if (index == null)
+        {
+            index = new IntNodeIndex(this);
+        }
+    }
+
+    public Optional<Integer> search(int key)
+    {
+        return Optional.ofNullable(box(searchIndex(key)));
+    }
+
+    public Optional<Integer> select(int i)
+    {
+        return Optional.ofNullable(box(selectIndex(i)));
+    }
+
+    public Integer rotateLeft(Integer x)
+    {
+        return rotateLeft(x.intValue());
+    }
+
+    public Integer rotateRight(Integer x)
+    {
+        return rotateRight(x.intValue());
+    }
+
+    public void inOrder(Consumer<Integer> visit)
+    {
+        requireNonNull(visit);
+        inOrderIndices(visit::accept);
+    }
+
+    public void postOrder(Consumer<Integer> visit)
+    {
+        requireNonNull(visit);
+        postOrderIndices(visit::accept);
+    }
+
+    public List<Integer> inOrderKeys()
+    {
+        List<Integer> keys = new ArrayList<>(size());
+        inOrderIndices(x -> keys.add(nodes.key(x)));
+        return keys;
+    }
+
+    public Set<Integer> keySet()
+    {
+        return new HashSet<>(inOrderKeys());
+    }
+
+    /**
+     * Worked out with one walk the first time, and kept up to date by insert after that.
+     * Inserting through a subtree view leaves this tree's fingerprint stale.
+     */
+    @Override
+    public long keyFingerprint()
+    {
+        if (!keyFingerprintValid)
+        {
+            // walk the indices directly rather than boxing them for postOrder
+            final long[] acc = {0};
+            inOrderIndices(x -> acc[0] += RotationTree.fingerprint(nodes.key(x)));
+            keyFingerprint = acc[0];
+            keyFingerprintValid = true;
+        }
+        return keyFingerprint;
+    }
+
+    @Override
+    public long nodesVisited()
+    {
+        return nodesVisited;
+    }
+
+    public IndexedBST subtree(Integer x)
+    {
+        return new IndexedBST(nodes, x);
+    }
+
+    /**
+     * The detached tree shares our index, since the nodes don't change keys while detached.
+     * Only search it for keys it holds.
+     */
+    public IndexedBST detach(Integer x)
+    {
+        nodes.setParent(x, NIL);
+        IndexedBST subtree = new IndexedBST(nodes, x);
+        subtree.index = index;
+        return subtree;
+    }
+
+    public void reattach(Integer parent, boolean left, RotationTree<Integer> subtree)
+    {
+        int x = subtree.root();
+        nodesVisited += subtree.nodesVisited();
+        if (parent == null)
+        {
+            nodes.setParent(x, NIL);
+            root = x;
+        }
+        else
+        {
+            nodes.setParent(x, parent);
+            if (left) nodes.setLeft(parent, x);
+            else nodes.setRight(parent, x);
+        }
+    }
+
+    /**
+     * Two IndexedBSTs are equal if they have the same shape and keys.
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return RotationTree.identical(this, (IndexedBST) o);
+    }
+
+    /**
+     * Hash the keys in pre-order along with which children each node has,
+     * which is enough to pin down the shape of the tree.
+     */
+    @Override
+    public int hashCode()
+    {
+        int hash = 1;
+        int x = root;
+        descend:
+        while (true)
+        {
+            int children = (nodes.left(x) != NIL ? 2 : 0) | (nodes.right(x) != NIL ? 1 : 0);
+            hash = 31 * hash + 4 * nodes.key(x) + children;
+            if (nodes.left(x) != NIL)
+            {
+                x = nodes.left(x);
+                continue;
+            }
+            if (nodes.right(x) != NIL)
+            {
+                x = nodes.right(x);
+                continue;
+            }
+
+            while (x != root)
+            {
+                int p = nodes.parent(x);
+                if (nodes.left(p) == x && nodes.right(p) != NIL)
+                {
+                    x = nodes.right(p);
+                    continue descend;
+                }
+                x = p;
+            }
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * NodeIndex for IndexedBST: a map from keys to the indices of the nodes holding them, kept in
+ * primitive arrays so that looking a key up never boxes anything. Missing keys map to NIL.
+ * <p>
+ * As in NodeIndex, contiguous keys are kept in an array indexed by key, and anything else in an
+ * open-addressing hash table with linear probing.
+ */
+final class IntNodeIndex
+{
+    private static final int NIL = NodeStore.NIL;
+
+    // dense mode: the node with key k is byKey[k - minKey], or NIL if there is none
+    private int[] byKey;
+    private int minKey;
+
+    // hashed mode (used when byKey is null): parallel arrays of keys and nodes, NIL nodes marking
+    // empty slots. The table is a power of two in size and never more than half full.
+    private int[] slotKeys;
+    private int[] slotNodes;
+    private int count;
+
+    /**
+     * Build an index of all the nodes in the given tree.
+     */
+    IntNodeIndex(IndexedBST tree)
+    {
+        final int n = tree.size();
+        final long min = tree.nodes.key(tree.selectIndex(0));
+        final long max = tree.nodes.key(tree.selectIndex(n - 1));
+        if (max - min + 1 == n)
+        {
+            byKey = new int[n];
+            Arrays.fill(byKey, NIL);
+            minKey = (int) min;
+        }
+        else
+        {
+            allocateTable(n);
+        }
+        tree.inOrderIndices(x -> put(tree.nodes.key(x), x));
+    }
+
+    /**
+     * Return the index of the node with the given key, or NIL if there is none.
+     */
+    int get(int key)
+    {
+        if (byKey != null)
+        {
+            long i = (long) key - minKey;
+            return i >= 0 && i < byKey.length ? byKey[(int) i] : NIL;
+        }
+
+        final int mask = slotNodes.length - 1;
+        for (int i = slot(key, mask); slotNodes[i] != NIL; i = (i + 1) & mask)
+        {
+            if (slotKeys[i] == key) return slotNodes[i];
+        }
+        return NIL;
+    }
+
+    /**
+     * Add the node with the given key and index.
+     */
+    void put(int key, int node)
+    {
+        if (byKey != null)
+        {
+            long i = (long) key - minKey;
+            if (i >= 0 && i < byKey.length)
+            {
+                byKey[(int) i] = node;
+                return;
+            }
+            else if (i == byKey.length && i < Integer.MAX_VALUE)
+            {
+                // the key is just past the end of the range, so make room for it (and a few more)
+                int oldLength = byKey.length;
+                byKey = Arrays.copyOf(byKey, Math.max(oldLength + (oldLength >> 1), oldLength + 1));
+                Arrays.fill(byKey, oldLength, byKey.length, NIL);
+                byKey[(int) i] = node;
+                return;
+            }
+            switchToTable();
+        }
+
+        if (2 * (count + 1) > slotNodes.length)
+        {
+            rehash(2 * slotNodes.length);
+        }
+        insertIntoTable(key, node);
+    }
+
+    private void allocateTable(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2 * expectedSize, 2) - 1) << 1;
+        slotKeys = new int[capacity];
+        slotNodes = new int[capacity];
+        Arrays.fill(slotNodes, NIL);
+        count = 0;
+    }
+
+    /**
+     * A key arrived outside the contiguous range, so move the nodes into a hash table.
+     */
+    private void switchToTable()
+    {
+        int[] dense = byKey;
+        byKey = null;
+        allocateTable(dense.length + 1);
+        for (int i = 0; i < dense.length; i++)
+        {
+            if (dense[i] != NIL) insertIntoTable(minKey + i, dense[i]);
+        }
+    }
+
+    private void rehash(int capacity)
+    {
+        int[] oldKeys = slotKeys;
+        int[] oldNodes = slotNodes;
+        allocateTable(capacity / 2);
+        for (int i = 0; i < oldNodes.length; i++)
+        {
+            if (oldNodes[i] != NIL) insertIntoTable(oldKeys[i], oldNodes[i]);
+        }
+    }
+
+    private void insertIntoTable(int key, int node)
+    {
+        final int mask = slotNodes.length - 1;
+        int i = slot(key, mask);
+        while (slotNodes[i] != NIL && slotKeys[i] != key)
+        {
+            i = (i + 1) & mask;
+        }
+        if (slotNodes[i] == NIL) count++;
+        slotKeys[i] = key;
+        slotNodes[i] = node;
+    }
+
+    /**
+     * Scramble the key so that runs of nearby keys spread over the table.
+     */
+    private static int slot(int key, int mask)
+    {
+        int h = key * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+/**
+ * Heap storage for the nodes of an IndexedBST. Node i is described by the ith entry of each
+ * array. Compared to a BSTNode there is no object header and no references for the garbage
+ * collector to trace.
+ */
+final class NodeArrays implements NodeStore
+{
+    private int[] key;
+    private int[] left;
+    private int[] right;
+    private int[] parent;
+    private int[] size;
+
+    // number of nodes allocated so far
+    private int count = 0;
+
+    /**
+     * Create storage with room for the given number of nodes before it has to grow.
+     */
+    NodeArrays(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        key = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        parent = new int[capacity];
+        size = new int[capacity];
+    }
+
+    public int key(int x)
+    {
+        return key[x];
+    }
+
+    public int left(int x)
+    {
+        return left[x];
+    }
+
+    public int right(int x)
+    {
+        return right[x];
+    }
+
+    public int parent(int x)
+    {
+        return parent[x];
+    }
+
+    public int size(int x)
+    {
+        return size[x];
+    }
+
+    public void setLeft(int x, int left)
+    {
+        this.left[x] = left;
+    }
+
+    public void setRight(int x, int right)
+    {
+        this.right[x] = right;
+    }
+
+    public void setParent(int x, int parent)
+    {
+        this.parent[x] = parent;
+    }
+
+    public void setSize(int x, int size)
+    {
+        this.size[x] = size;
+    }
+
+    public int add(int k)
+    {
+        if (count == key.length)
+        {
+            int capacity = key.length + (key.length >> 1) + 1;
+            key = Arrays.copyOf(key, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            size = Arrays.copyOf(size, capacity);
+        }
+
+        int x = count++;
+        key[x] = k;
+        left[x] = NIL;
+        right[x] = NIL;
+        parent[x] = NIL;
+        size[x] = 1;
+        return x;
+    }
+
+    public int count()
+    {
+        return count;
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.Arrays;
+
+/**
+ * A map from keys to the BSTNodes holding them, so that a BST can find a node in O(1) instead of
+ * searching from the root. Rotations never change which node holds a key, so the index only has
+ * to be told about new nodes.
+ * <p>
+ * When the keys form a contiguous range (as they do in our experiments) the nodes are kept in an
+ * array indexed by key. Otherwise they are kept in an open-addressing hash table with linear
+ * probing, keyed by the primitive key.
+ */
+final class NodeIndex
+{
+    // dense mode: the node with key k is at byKey[k - minKey]
+    private BSTNode[] byKey;
+    private int minKey;
+
+    // hashed mode (used when byKey is null): parallel arrays of keys and nodes, null nodes marking
+    // empty slots. The table is a power of two in size and never more than half full.
+    private int[] slotKeys;
+    private BSTNode[] slotNodes;
+    private int count;
+
+    /**
+     * Build an index of all the nodes in the subtree rooted at root.
+     */
+    NodeIndex(BSTNode root)
+    {
+        final int n = root.size();
+        final long min = root.minimum().key;
+        final long max = root.maximum().key;
+        if (max - min + 1 == n)
+        {
+            byKey = new BSTNode[n];
+            minKey = (int) min;
+        }
+        else
+        {
+            allocateTable(n);
+        }
+        root.inOrder(this::put);
+    }
+
+    /**
+     * Return the node with the given key, or null if there is none.
+     */
+    BSTNode get(int key)
+    {
+        if (byKey != null)
+        {
+            long i = (long) key - minKey;
+            return i >= 0 && i < byKey.length ? byKey[(int) i] : null;
+        }
+
+        final int mask = slotNodes.length - 1;
+        for (int i = slot(key, mask); slotNodes[i] != null; i = (i + 1) & mask)
+        {
+            if (slotKeys[i] == key) return slotNodes[i];
+        }
+        return null;
+    }
+
+    /**
+     * Add a node to the index.
+     */
+    void put(BSTNode node)
+    {
+        if (byKey != null)
+        {
+            long i = (long) node.key - minKey;
+            if (i >= 0 && i < byKey.length)
+            {
+                byKey[(int) i] = node;
+                return;
+            }
+            else if (i == byKey.length && i < Integer.MAX_VALUE)
+            {
+                // the key is just past the end of the range, so make room for it (and a few more)
+                byKey = Arrays.copyOf(byKey, Math.max(byKey.length + (byKey.length >> 1), byKey.length + 1));
+                byKey[(int) i] = node;
+                return;
+            }
+            switchToTable();
+        }
+
+        if (2 * (count + 1) > slotNodes.length)
+        {
+            rehash(2 * slotNodes.length);
+        }
+        insertIntoTable(node);
+    }
+
+    private void allocateTable(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2 * expectedSize, 2) - 1) << 1;
+        slotKeys = new int[capacity];
+        slotNodes = new BSTNode[capacity];
+        count = 0;
+    }
+
+    /**
+     * A key arrived outside the contiguous range, so move the nodes into a hash table.
+     */
+    private void switchToTable()
+    {
+        BSTNode[] dense = byKey;
+        byKey = null;
+        allocateTable(dense.length + 1);
+        for (BSTNode node : dense)
+        {
+            if (node != null) insertIntoTable(node);
+        }
+    }
+
+    private void rehash(int capacity)
+    {
+        BSTNode[] oldNodes = slotNodes;
+        slotKeys = new int[capacity];
+        slotNodes = new BSTNode[capacity];
+        count = 0;
+        for (BSTNode node : oldNodes)
+        {
+            if (node != null) insertIntoTable(node);
+        }
+    }
+
+    private void insertIntoTable(BSTNode node)
+    {
+        final int mask = slotNodes.length - 1;
+        int i = slot(node.key, mask);
+        while (slotNodes[i] != null && slotKeys[i] != node.key)
+        {
+            i = (i + 1) & mask;
+        }
+        if (slotNodes[i] == null) count++;
+        slotKeys[i] = node.key;
+        slotNodes[i] = node;
+    }
+
+    /**
+     * Scramble the key so that runs of nearby keys spread over the table.
+     */
+    private static int slot(int key, int mask)
+    {
+        int h = key * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+}
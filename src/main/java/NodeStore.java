@@ -0,0 +1,40 @@
+/**
+ * Storage for the nodes of an IndexedBST. Nodes are numbered from zero in the order they were
+ * added, and links between nodes are node numbers, with NIL standing in for null.
+ */
+interface NodeStore
+{
+    // node number used in place of a null link
+    int NIL = -1;
+
+    int key(int x);
+
+    int left(int x);
+
+    int right(int x);
+
+    int parent(int x);
+
+    /**
+     * Number of nodes in the subtree rooted at x.
+     */
+    int size(int x);
+
+    void setLeft(int x, int left);
+
+    void setRight(int x, int right);
+
+    void setParent(int x, int parent);
+
+    void setSize(int x, int size);
+
+    /**
+     * Allocate a new leaf holding the given key and return its number.
+     */
+    int add(int key);
+
+    /**
+     * Number of nodes allocated so far.
+     */
+    int count();
+}
@@ -0,0 +1,204 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Off-heap storage for the nodes of an IndexedBST. Each node is a fixed-size record of five ints
+ * (key, left, right, parent, size) inside a direct ByteBuffer, so the garbage collector never
+ * sees the individual nodes, and a rotation is just a handful of int writes.
+ * <p>
+ * A single ByteBuffer tops out at 2 GiB, so the records are spread over fixed-size chunks which
+ * are allocated as the store grows. The store must be closed once the tree is no longer needed.
+ * Closing frees the chunks' memory straight away and makes any further use of the store, or of
+ * trees built on it, throw an IllegalStateException. It must not be closed while another thread
+ * is still using it.
+ * <p>
+ * The memory is freed with sun.misc.Unsafe.invokeCleaner, since the memory segment API that
+ * does this properly isn't final in the Java versions we build for. If that isn't available
+ * the chunks are only dropped, and their memory is returned when the buffers are collected.
+ */
+final class OffHeapNodeStore implements NodeStore, AutoCloseable
+{
+    // byte offsets of the fields within a node record
+    private static final int KEY = 0;
+    private static final int LEFT = 4;
+    private static final int RIGHT = 8;
+    private static final int PARENT = 12;
+    private static final int SIZE = 16;
+    private static final int RECORD_BYTES = 20;
+
+    // each chunk holds 2^CHUNK_SHIFT nodes (20 MiB)
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    // Unsafe.invokeCleaner and the Unsafe to call it on, or null if we couldn't get at them
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static
+    {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            // leave the buffers to the garbage collector
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private ByteBuffer[] chunks;
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a store with room for the given number of nodes before it has to grow.
+     */
+    OffHeapNodeStore(int capacity)
+    {
+        int numChunks = Math.max(1, (int) (((long) capacity + CHUNK_MASK) >>> CHUNK_SHIFT));
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++)
+        {
+            chunks[i] = allocateChunk();
+        }
+    }
+
+    private static ByteBuffer allocateChunk()
+    {
+        return ByteBuffer.allocateDirect(RECORD_BYTES << CHUNK_SHIFT).order(ByteOrder.nativeOrder());
+    }
+
+    private ByteBuffer chunk(int x)
+    {
+        if (closed) throw new IllegalStateException("node store has been closed");
+        return chunks[x >>> CHUNK_SHIFT];
+    }
+
+    private static int offset(int x)
+    {
+        return (x & CHUNK_MASK) * RECORD_BYTES;
+    }
+
+    public int key(int x)
+    {
+        return chunk(x).getInt(offset(x) + KEY);
+    }
+
+    public int left(int x)
+    {
+        return chunk(x).getInt(offset(x) + LEFT);
+    }
+
+    public int right(int x)
+    {
+        return chunk(x).getInt(offset(x) + RIGHT);
+    }
+
+    public int parent(int x)
+    {
+        return chunk(x).getInt(offset(x) + PARENT);
+    }
+
+    public int size(int x)
+    {
+        return chunk(x).getInt(offset(x) + SIZE);
+    }
+
+    public void setLeft(int x, int left)
+    {
+        chunk(x).putInt(offset(x) + LEFT, left);
+    }
+
+    public void setRight(int x, int right)
+    {
+        chunk(x).putInt(offset(x) + RIGHT, right);
+    }
+
+    public void setParent(int x, int parent)
+    {
+        chunk(x).putInt(offset(x) + PARENT, parent);
+    }
+
+    public void setSize(int x, int size)
+    {
+        chunk(x).putInt(offset(x) + SIZE, size);
+    }
+
+    public int add(int key)
+    {
+        if (closed) throw new IllegalStateException("node store has been closed");
+
+        int x = count;
+        int c = x >>> CHUNK_SHIFT;
+        if (c == chunks.length)
+        {
+            chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+        }
+        if (chunks[c] == null)
+        {
+            chunks[c] = allocateChunk();
+        }
+        count++;
+
+        ByteBuffer chunk = chunks[c];
+        int offset = offset(x);
+        chunk.putInt(offset + KEY, key);
+        chunk.putInt(offset + LEFT, NIL);
+        chunk.putInt(offset + RIGHT, NIL);
+        chunk.putInt(offset + PARENT, NIL);
+        chunk.putInt(offset + SIZE, 1);
+        return x;
+    }
+
+    public int count()
+    {
+        return count;
+    }
+
+    /**
+     * Free the chunks. Trees built on this store must not be used afterwards.
+     * Closing a store twice does nothing the second time.
+     */
+    @Override
+    public void close()
+    {
+        if (closed) return;
+        closed = true;
+        ByteBuffer[] freed = chunks;
+        chunks = new ByteBuffer[0];
+        if (INVOKE_CLEANER == null) return;
+
+        for (ByteBuffer chunk : freed)
+        {
+            if (chunk == null) continue;
+            try
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, chunk);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new IllegalStateException("couldn't free a chunk", e);
+            }
+        }
+    }
+
+    /**
+     * Whether close frees the memory itself, rather than leaving it to the garbage collector.
+     */
+    static boolean freesOnClose()
+    {
+        return INVOKE_CLEANER != null;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Where an algorithm spent its time and rotations, phase by phase. When an algorithm calls
+ * another (A2 falling back to A1, or A3 running A1 on subtrees and then A2) the callee's
+ * phases are added into the caller's, so the rotations over all phases always add up to
+ * the rotations the algorithm performed.
+ * <p>
+ * Lookups count the nodes of S that search and select visited while rotating (see
+ * RotationTree.nodesVisited): finding rootT, and then one search per rotation replayed while
+ * unfolding. With a key index each search visits just the node it finds, otherwise it visits
+ * every node on the way down from the root.
+ * <p>
+ * Phases started with begin are also reported to Java Flight Recorder, see BalancingEvents,
+ * and every phase is counted in BalancingMetrics.
+ */
+final class PhaseStats
+{
+    enum Phase
+    {
+        // sanity checks and building key indexes
+        SETUP,
+        // finding the maximal identical or equivalent subtrees
+        MATCH,
+        // rotating rootT up to the root
+        ROOT,
+        // folding S into forearms
+        FOLD,
+        // unfolding the forearms into T
+        UNFOLD
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] nanos = new long[PHASES.length];
+    private final long[] rotations = new long[PHASES.length];
+    private final long[] lookups = new long[PHASES.length];
+
+    // what the flight recorder events are about, if anything
+    private final BalanceViaRotation.Algorithm algorithm;
+    private final RotationTree<?> tree;
+
+    // the flight recorder event for the phase under way
+    private BalancingEvents.PhaseEvent event = null;
+
+    PhaseStats()
+    {
+        this(null, null);
+    }
+
+    /**
+     * Phase stats for algorithm balancing tree, which is reported in the flight recorder events.
+     */
+    PhaseStats(BalanceViaRotation.Algorithm algorithm, RotationTree<?> tree)
+    {
+        this.algorithm = algorithm;
+        this.tree = tree;
+    }
+
+    /**
+     * Start timing a phase, returning the start time to pass to record.
+     */
+    long begin()
+    {
+        // when no recording is running this does nothing, and the JIT throws the event away
+        event = new BalancingEvents.PhaseEvent();
+        event.begin();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a phase that started at startNanos (from System.nanoTime) and has just finished.
+     */
+    void record(Phase phase, long startNanos, long rotations, long lookups)
+    {
+        final long elapsed = System.nanoTime() - startNanos;
+        this.nanos[phase.ordinal()] += elapsed;
+        this.rotations[phase.ordinal()] += rotations;
+        this.lookups[phase.ordinal()] += lookups;
+        BalancingMetrics.INSTANCE.recordPhase(phase, elapsed, rotations);
+
+        if (event != null)
+        {
+            event.end();
+            if (event.shouldCommit())
+            {
+                // the height takes a walk over the whole tree, so only work it out when it's wanted
+                event.algorithm = algorithm == null ? null : algorithm.name();
+                event.phase = phase.name();
+                event.rotations = rotations;
+                event.lookups = lookups;
+                if (tree != null)
+                {
+                    event.n = tree.size();
+                    event.height = tree.height();
+                }
+                event.commit();
+            }
+            event = null;
+        }
+    }
+
+    /**
+     * Add the phases of a nested call into these.
+     */
+    void addAll(PhaseStats other)
+    {
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            nanos[i] += other.nanos[i];
+            rotations[i] += other.rotations[i];
+            lookups[i] += other.lookups[i];
+        }
+    }
+
+    long nanos(Phase phase)
+    {
+        return nanos[phase.ordinal()];
+    }
+
+    long rotations(Phase phase)
+    {
+        return rotations[phase.ordinal()];
+    }
+
+    long lookups(Phase phase)
+    {
+        return lookups[phase.ordinal()];
+    }
+
+    /**
+     * Return the rotations performed across all phases.
+     */
+    long totalRotations()
+    {
+        long total = 0;
+        for (long r : rotations) total += r;
+        return total;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of forearm plans. A forearm plan is the sequence of packed RotationLog
+ * entries that ForearmUnfolding generates for an almost complete tree of n nodes, when no nodes
+ * are ignored. The entries are ranks, so a plan can be replayed on any tree of the same size no
+ * matter what its keys are. Generating a plan is cheap, but experiments balance many trees of
+ * the same size, and reading the entries back out of an array is cheaper still.
+ * <p>
+ * Only A1's plans are cached: A2 ignores different ranks for almost every tree, so its plans
+ * would just push the useful ones out. The cache is bounded by the total number of entries it
+ * holds rather than by the number of plans, since a plan for a large tree is much bigger than one
+ * for a small tree. Plans handed out by the cache are shared, so they must not be modified.
+ */
+final class PlanCache
+{
+    // the maximum number of entries held across all cached plans
+    private final long capacity;
+
+    // the plans by n, in least-recently-used order
+    private final LinkedHashMap<Integer, int[]> plans = new LinkedHashMap<>(16, 0.75f, true);
+
+    // total number of entries held across all cached plans
+    private long weight = 0;
+
+    PlanCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return the plan for trees of n nodes, generating and caching it if we don't have it yet.
+     */
+    int[] get(int n)
+    {
+        synchronized (this)
+        {
+            int[] plan = plans.get(n);
+            if (plan != null) return plan;
+        }
+
+        // generate outside the lock, so that other threads can still hit the cache meanwhile
+        final int[] plan = generate(n);
+
+        synchronized (this)
+        {
+            if (plan.length <= capacity && !plans.containsKey(n))
+            {
+                plans.put(n, plan);
+                weight += plan.length;
+                evict();
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Write out the entries of a ForearmUnfolding of n nodes, none of them ignored.
+     */
+    private static int[] generate(int n)
+    {
+        // every node but the root is rotated at most once
+        int[] plan = new int[n];
+        int size = 0;
+        for (ForearmUnfolding entries = new ForearmUnfolding(n, new BitSet()); entries.hasNext(); )
+        {
+            plan[size++] = entries.nextInt();
+        }
+        return Arrays.copyOf(plan, size);
+    }
+
+    /**
+     * Drop the least recently used plans until we are within capacity.
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<Integer, int[]>> oldestFirst = plans.entrySet().iterator();
+        while (weight > capacity && oldestFirst.hasNext())
+        {
+            weight -= oldestFirst.next().getValue().length;
+            oldestFirst.remove();
+        }
+    }
+
+    /**
+     * Forget every plan.
+     */
+    synchronized void clear()
+    {
+        plans.clear();
+        weight = 0;
+    }
+}
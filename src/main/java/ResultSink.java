@@ -0,0 +1,26 @@
+/**
+ * Somewhere to send experiment results, one trial at a time and in trial order.
+ */
+interface ResultSink extends AutoCloseable
+{
+    /**
+     * Take the result of a trial.
+     */
+    void accept(ExperimentRunner.Result result);
+
+    /**
+     * Push out anything buffered so far.
+     */
+    default void flush()
+    {
+    }
+
+    /**
+     * Flush and release whatever the sink writes to.
+     */
+    @Override
+    default void close()
+    {
+        flush();
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one record per trial as CSV or JSON Lines, so a sweep can be read back without
+ * scraping the human-readable output. Records are buffered and flushed every FLUSH_EVERY
+ * records or FLUSH_INTERVAL_NANOS, whichever comes first, so a long sweep costs little I/O
+ * but a crash loses at most a few seconds of results.
+ */
+final class ResultWriter implements ResultSink
+{
+    enum Format
+    {
+        CSV,
+        JSON_LINES
+    }
+
+    static final int FLUSH_EVERY = 4096;
+    static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final PhaseStats.Phase[] PHASES = PhaseStats.Phase.values();
+
+    private final Writer out;
+    private final Format format;
+
+    // reused for every record
+    private final StringBuilder line = new StringBuilder(512);
+
+    private int unflushed = 0;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * Write to out in the given format. A CSV header is written straight away.
+     */
+    ResultWriter(Writer out, Format format)
+    {
+        this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out, 1 << 16);
+        this.format = format;
+        if (format == Format.CSV) write(csvHeader());
+    }
+
+    /**
+     * Write to a new file, in JSON Lines if its name ends in .jsonl and CSV otherwise.
+     */
+    static ResultWriter open(Path path) throws IOException
+    {
+        Format format = path.getFileName().toString().endsWith(".jsonl") ? Format.JSON_LINES : Format.CSV;
+        return new ResultWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8), format);
+    }
+
+    @Override
+    public void accept(ExperimentRunner.Result result)
+    {
+        line.setLength(0);
+        switch (format)
+        {
+            case CSV -> appendCsv(result);
+            case JSON_LINES -> appendJson(result);
+        }
+        line.append('\n');
+        write(line);
+
+        unflushed++;
+        if (unflushed >= FLUSH_EVERY || System.nanoTime() - lastFlush >= FLUSH_INTERVAL_NANOS)
+        {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        try
+        {
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        unflushed = 0;
+        lastFlush = System.nanoTime();
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(CharSequence s)
+    {
+        try
+        {
+            out.append(s);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String csvHeader()
+    {
+        StringBuilder header = new StringBuilder("algorithm,n,source,trial,seed,rotations_actual,rotations_expected,height_s,height_t");
+        for (PhaseStats.Phase phase : PHASES)
+        {
+            String name = phase.name().toLowerCase();
+            header.append(',').append(name).append("_nanos")
+                    .append(',').append(name).append("_rotations")
+                    .append(',').append(name).append("_lookups");
+        }
+        return header.append('\n').toString();
+    }
+
+    private void appendCsv(ExperimentRunner.Result result)
+    {
+        // none of the fields can contain a comma or a quote, so nothing needs escaping
+        final ExperimentRunner.Trial trial = result.trial();
+        final BalanceViaRotation.Statistic stat = result.statistic();
+        line.append(trial.algorithm()).append(',')
+                .append(trial.n()).append(',')
+                .append(trial.source()).append(',')
+                .append(trial.i()).append(',')
+                .append(trial.seed()).append(',')
+                .append(stat.rotationsActual()).append(',')
+                .append(stat.rotationsExpected()).append(',')
+                .append(result.heightS()).append(',')
+                .append(result.heightT());
+        for (PhaseStats.Phase phase : PHASES)
+        {
+            line.append(',').append(stat.phases().nanos(phase))
+                    .append(',').append(stat.phases().rotations(phase))
+                    .append(',').append(stat.phases().lookups(phase));
+        }
+    }
+
+    private void appendJson(ExperimentRunner.Result result)
+    {
+        final ExperimentRunner.Trial trial = result.trial();
+        final BalanceViaRotation.Statistic stat = result.statistic();
+        line.append("{\"algorithm\":\"").append(trial.algorithm())
+                .append("\",\"n\":").append(trial.n())
+                .append(",\"source\":\"").append(trial.source())
+                .append("\",\"trial\":").append(trial.i())
+                .append(",\"seed\":").append(trial.seed())
+                .append(",\"rotations_actual\":").append(stat.rotationsActual())
+                .append(",\"rotations_expected\":").append(stat.rotationsExpected())
+                .append(",\"height_s\":").append(result.heightS())
+                .append(",\"height_t\":").append(result.heightT())
+                .append(",\"phases\":{");
+        for (PhaseStats.Phase phase : PHASES)
+        {
+            if (phase.ordinal() > 0) line.append(',');
+            line.append('"').append(phase.name().toLowerCase())
+                    .append("\":{\"nanos\":").append(stat.phases().nanos(phase))
+                    .append(",\"rotations\":").append(stat.phases().rotations(phase))
+                    .append(",\"lookups\":").append(stat.phases().lookups(phase))
+                    .append('}');
+        }
+        line.append("}}");
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A growable log of rotations, each packed into a single int.
+ * <p>
+ * A rotation is identified by the rank of the node that ends up on top (the new parent) together
+ * with the direction. Rotations never change the in-order rank of a node, so a log recorded on
+ * one tree can be replayed on any tree with the same keys. The rank goes in the upper 31 bits and
+ * the direction in the lowest bit.
+ */
+final class RotationLog
+{
+    // the low bit of an entry is set for right rotations
+    private static final int RIGHT = 1;
+
+    private int[] entries;
+    private int size = 0;
+
+    RotationLog()
+    {
+        this(16);
+    }
+
+    RotationLog(int capacity)
+    {
+        entries = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Record a rotation after which the node of the given rank is the parent.
+     */
+    void add(BalanceViaRotation.Rotation rotation, int rank)
+    {
+        assert rank >= 0 && rank <= Integer.MAX_VALUE >> 1 : "rank " + rank + " does not fit";
+        ensureCapacity(size + 1);
+        entries[size++] = pack(rotation, rank);
+    }
+
+    /**
+     * Append all the rotations of another log to this one.
+     */
+    void addAll(RotationLog other)
+    {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.entries, 0, entries, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Return the number of rotations in the log.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Return the direction of the ith rotation.
+     */
+    BalanceViaRotation.Rotation rotation(int i)
+    {
+        return rotationOf(entries(i));
+    }
+
+    /**
+     * Return the rank of the node on top after the ith rotation.
+     */
+    int rank(int i)
+    {
+        return rankOf(entries(i));
+    }
+
+    /**
+     * Iterate over the packed entries of the log, most recent first.
+     */
+    PrimitiveIterator.OfInt newestFirst()
+    {
+        return new PrimitiveIterator.OfInt()
+        {
+            int i = size;
+
+            public boolean hasNext()
+            {
+                return i > 0;
+            }
+
+            public int nextInt()
+            {
+                if (i == 0) throw new NoSuchElementException();
+                return entries[--i];
+            }
+        };
+    }
+
+    /**
+     * Pack a rotation and the rank of the node on top after it into a single entry.
+     */
+    static int pack(BalanceViaRotation.Rotation rotation, int rank)
+    {
+        return rank << 1 | (rotation == BalanceViaRotation.Rotation.Right ? RIGHT : 0);
+    }
+
+    /**
+     * Return the direction of a packed entry.
+     */
+    static BalanceViaRotation.Rotation rotationOf(int entry)
+    {
+        return (entry & RIGHT) != 0 ? BalanceViaRotation.Rotation.Right : BalanceViaRotation.Rotation.Left;
+    }
+
+    /**
+     * Return the rank of a packed entry.
+     */
+    static int rankOf(int entry)
+    {
+        return entry >>> 1;
+    }
+
+    private int entries(int i)
+    {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i);
+        return entries[i];
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > entries.length)
+        {
+            entries = Arrays.copyOf(entries, Math.max(capacity, entries.length + (entries.length >> 1)));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Gets told about every rotation a BST performs, for counting, tracing or replaying them
+ * without touching the algorithms. See BST.setRotationObserver.
+ * <p>
+ * Detached and subtree views share the observer of the tree they came from. The observer is
+ * called on whichever thread did the rotation, and when given a pool the algorithms rotate
+ * detached subtrees (the two sides of the root, or A3's equivalent subtrees) on several threads
+ * at once. So an observer used with a pool must be thread safe, and since it runs inside the
+ * rotation it shouldn't block. The rotations of any one subtree are reported in order, but
+ * there is no order between subtrees rotated on different threads.
+ */
+@FunctionalInterface
+interface RotationObserver
+{
+    /**
+     * The observer every tree starts with. BST skips the call entirely when it sees this one,
+     * so an unobserved rotation costs a single comparison.
+     */
+    RotationObserver NONE = (tree, pivot, direction) -> { };
+
+    /**
+     * Called after pivot has been rotated in the given direction, so that its child took its
+     * place in tree. tree may be a view of part of a bigger tree. Observers that want to know
+     * how deep the rotation was can ask for tree.depth(pivot) - 1, which is the depth in the
+     * whole tree even then. But that walks up to the root of the view, so it's best done
+     * sparingly: on a vine it would turn folding into forearms from linear into quadratic time.
+     */
+    void rotated(BST tree, BSTNode pivot, BalanceViaRotation.Rotation direction);
+
+    /**
+     * Return an observer that tells this observer and then next.
+     */
+    default RotationObserver andThen(RotationObserver next)
+    {
+        if (this == NONE) return next;
+        if (next == NONE) return this;
+        return (tree, pivot, direction) ->
+        {
+            rotated(tree, pivot, direction);
+            next.rotated(tree, pivot, direction);
+        };
+    }
+}
@@ -0,0 +1,213 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A binary search tree that can be restructured with rotations. This is everything
+ * A1, A2 and A3 need from a tree, so they can run against any implementation.
+ * <p>
+ * Nodes are referred to through handles of type N (a BSTNode for BST, an array index for
+ * IndexedBST). A null handle means "no node", just like a null child pointer.
+ */
+interface RotationTree<N>
+{
+    /**
+     * Return the root of the tree.
+     */
+    N root();
+
+    /**
+     * Return the left child of x, or null if there is none.
+     */
+    N left(N x);
+
+    /**
+     * Return the right child of x, or null if there is none.
+     */
+    N right(N x);
+
+    /**
+     * Return the parent of x, or null if x is the root of the whole tree.
+     */
+    N parent(N x);
+
+    /**
+     * Return the key stored at x.
+     */
+    int key(N x);
+
+    /**
+     * Return the number of nodes in the subtree rooted at x.
+     */
+    int size(N x);
+
+    /**
+     * Return the number of nodes in the tree.
+     */
+    int size();
+
+    /**
+     * Returns the height of the tree, which is the number of edges on the longest path from
+     * the root to a leaf.
+     */
+    int height();
+
+    /**
+     * If a node with the given key is present in the tree, return it.
+     * Otherwise return an empty optional.
+     */
+    Optional<N> search(int key);
+
+    /**
+     * Gets the node of ith rank in the tree, or an empty optional if the rank is invalid.
+     */
+    Optional<N> select(int i);
+
+    /**
+     * Return how many nodes search and select have visited on this tree so far. A search through
+     * a key index visits only the node it finds. The count is not synchronized, so it is only
+     * exact if one thread at a time searches the tree. Detached trees count on their own, and
+     * reattach adds their count back into ours.
+     */
+    long nodesVisited();
+
+    /**
+     * Left rotate the edge whose endpoints are x and the right child of x.
+     * Return the new parent.
+     */
+    N rotateLeft(N x);
+
+    /**
+     * Right rotate the edge whose endpoints are x and the left child of x.
+     * Return the new parent.
+     */
+    N rotateRight(N x);
+
+    /**
+     * Perform an in-order walk of the tree, running the visit function on each node.
+     */
+    void inOrder(Consumer<N> visit);
+
+    /**
+     * Perform a post-order walk of the tree, running the visit function on each node.
+     */
+    void postOrder(Consumer<N> visit);
+
+    /**
+     * Perform an in-order walk of the tree, returning the keys encountered on the walk
+     * in the order they were encountered.
+     */
+    List<Integer> inOrderKeys();
+
+    /**
+     * returns set of all the keys in this tree.
+     */
+    Set<Integer> keySet();
+
+    /**
+     * Return the sum of fingerprint(k) over the keys k in the tree. It doesn't depend on the
+     * shape of the tree, so rotations leave it alone, and trees may keep it up to date as keys
+     * are inserted rather than walking the tree every time.
+     */
+    default long keyFingerprint()
+    {
+        long[] sum = {0};
+        postOrder(x -> sum[0] += fingerprint(key(x)));
+        return sum[0];
+    }
+
+    /**
+     * Spread key over all 64 bits (this is SplitMix64's mixing function), so that two different
+     * sets of keys of the same size are all but certain to have different sums.
+     */
+    static long fingerprint(int key)
+    {
+        long z = key + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Return a tree rooted at x which shares its nodes with this tree. Rotations done
+     * through the returned tree are visible in this one.
+     */
+    RotationTree<N> subtree(N x);
+
+    /**
+     * Cut the subtree rooted at x loose from its parent and return it as a tree of its own.
+     * Rotating the returned tree never touches anything above x, so disjoint subtrees can be
+     * rotated on different threads. This tree must not be used again until reattach is called.
+     */
+    RotationTree<N> detach(N x);
+
+    /**
+     * Hang a tree returned by detach back under the node it was cut from, as its left or right
+     * child. If parent is null the subtree was the whole tree, and becomes it again.
+     */
+    void reattach(N parent, boolean left, RotationTree<N> subtree);
+
+    /**
+     * Hint that many searches are coming, so the tree may build an index that makes search O(1).
+     * The index must stay valid across rotations and inserts. Trees without one ignore this.
+     */
+    default void indexKeys()
+    {
+    }
+
+    /**
+     * Do the handles a and b refer to the same node?
+     */
+    default boolean sameNode(N a, N b)
+    {
+        return Objects.equals(a, b);
+    }
+
+    /**
+     * Are the trees s and t identical, that is, do they have the same shape and the same keys?
+     * The trees may use different implementations.
+     */
+    static <A, B> boolean identical(RotationTree<A> s, RotationTree<B> t)
+    {
+        return identical(s, s.root(), t, t.root());
+    }
+
+    /**
+     * Is the subtree of s rooted at x identical to the subtree of t rooted at y?
+     * Either of x and y may be null.
+     */
+    static <A, B> boolean identical(RotationTree<A> s, A x, RotationTree<B> t, B y)
+    {
+        if (x == null || y == null) return x == null && y == null;
+
+        // walk both subtrees in lockstep, comparing keys and the presence of children
+        Deque<A> pendingS = new ArrayDeque<>();
+        Deque<B> pendingT = new ArrayDeque<>();
+        pendingS.push(x);
+        pendingT.push(y);
+        while (!pendingS.isEmpty())
+        {
+            A a = pendingS.pop();
+            B b = pendingT.pop();
+            if (s.key(a) != t.key(b)) return false;
+
+            A leftS = s.left(a);
+            B leftT = t.left(b);
+            if ((leftS == null) != (leftT == null)) return false;
+            if (leftS != null)
+            {
+                pendingS.push(leftS);
+                pendingT.push(leftT);
+            }
+
+            A rightS = s.right(a);
+            B rightT = t.right(b);
+            if ((rightS == null) != (rightT == null)) return false;
+            if (rightS != null)
+            {
+                pendingS.push(rightS);
+                pendingT.push(rightT);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,362 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Source trees for the experiments. Every tree holds the keys 0 to n-1, the same keys as the
+ * almost complete target tree, and takes O(n) time to build. Apart from the nodes themselves
+ * the generators only allocate a few int arrays.
+ */
+final class TreeGenerators
+{
+    /**
+     * The kinds of source tree, for picking one in the experiment harness.
+     */
+    enum Source
+    {
+        // the original experiment: an almost complete tree with randomly rotated edges
+        PERTURBED,
+        UNIFORM,
+        RANDOM_INSERTION,
+        LEFT_VINE,
+        RIGHT_VINE,
+        ZIG_ZAG,
+        // about half the nodes in subtrees identical to the almost complete tree
+        HALF_IDENTICAL;
+
+        BST generate(int n, SplittableRandom random)
+        {
+            return switch (this)
+            {
+                case PERTURBED -> perturbed(n, random);
+                case UNIFORM -> uniform(n, random);
+                case RANDOM_INSERTION -> randomInsertionOrder(n, random);
+                case LEFT_VINE -> leftVine(n);
+                case RIGHT_VINE -> rightVine(n);
+                case ZIG_ZAG -> zigZag(n);
+                case HALF_IDENTICAL -> withIdenticalSubtrees(n, 0.5, random);
+            };
+        }
+    }
+
+    private TreeGenerators()
+    {
+    }
+
+    /**
+     * An almost complete tree with randomly rotated edges, as in the original experiment.
+     */
+    static BST perturbed(int n, SplittableRandom random)
+    {
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys(n));
+        BalanceViaRotation.randomlyRotate(t, random);
+        return t;
+    }
+
+    /**
+     * A tree drawn uniformly from all binary trees with n nodes, using Rémy's algorithm.
+     * <p>
+     * Rémy's algorithm grows a full binary tree with n internal nodes one internal node at a
+     * time: pick any node of the tree so far uniformly, and replace it with a new internal node
+     * that has the old node as one child and a new leaf as the other. Dropping the leaves leaves
+     * a uniformly random binary tree, which we then fill with keys in order.
+     */
+    static BST uniform(int n, SplittableRandom random)
+    {
+        checkSize(n);
+
+        // Node 0 is the first leaf, and step k adds internal node 2k+1 and leaf 2k+2,
+        // so the internal nodes are exactly the odd ones.
+        final int[] left = new int[2 * n + 1];
+        final int[] right = new int[2 * n + 1];
+        final int[] parent = new int[2 * n + 1];
+        left[0] = right[0] = parent[0] = -1;
+        int root = 0;
+        for (int k = 0; k < n; k++)
+        {
+            final int x = random.nextInt(2 * k + 1);
+            final int internal = 2 * k + 1;
+            final int leaf = 2 * k + 2;
+
+            // the new internal node takes x's place
+            final int p = parent[x];
+            parent[internal] = p;
+            if (p == -1) root = internal;
+            else if (left[p] == x) left[p] = internal;
+            else right[p] = internal;
+
+            // and x and the new leaf become its children, one on each side
+            final boolean xOnLeft = random.nextBoolean();
+            left[internal] = xOnLeft ? x : leaf;
+            right[internal] = xOnLeft ? leaf : x;
+            parent[x] = internal;
+            parent[leaf] = internal;
+            left[leaf] = right[leaf] = -1;
+        }
+
+        // Walk the full tree in order, numbering the internal nodes as we meet them.
+        final BSTNode[] nodes = new BSTNode[n];
+        int key = 0;
+        int x = root;
+        while (left[x] != -1) x = left[x];
+        while (x != -1)
+        {
+            if (x % 2 == 1)
+            {
+                nodes[x / 2] = new BSTNode(key++);
+            }
+
+            if (right[x] != -1)
+            {
+                x = right[x];
+                while (left[x] != -1) x = left[x];
+            }
+            else
+            {
+                // climb until we come up from a left child
+                while (parent[x] != -1 && right[parent[x]] == x) x = parent[x];
+                x = parent[x];
+            }
+        }
+
+        // Link up the internal nodes, skipping the leaves.
+        for (int i = 1; i < 2 * n + 1; i += 2)
+        {
+            if (left[i] % 2 == 1) link(nodes[i / 2], nodes[left[i] / 2], true);
+            if (right[i] % 2 == 1) link(nodes[i / 2], nodes[right[i] / 2], false);
+        }
+        return finish(nodes[root / 2]);
+    }
+
+    /**
+     * The tree we get by inserting the keys in a uniformly random order. Its root is equally
+     * likely to be any key, and its subtrees are built the same way, so we build it top-down
+     * without shuffling or searching.
+     */
+    static BST randomInsertionOrder(int n, SplittableRandom random)
+    {
+        return withIdenticalSubtrees(n, 0, random);
+    }
+
+    /**
+     * A tree in which every node only has a left child, so the largest key is the root.
+     */
+    static BST leftVine(int n)
+    {
+        checkSize(n);
+        BSTNode root = new BSTNode(n - 1);
+        BSTNode bottom = root;
+        for (int key = n - 2; key >= 0; key--)
+        {
+            BSTNode x = new BSTNode(key);
+            link(bottom, x, true);
+            bottom = x;
+        }
+        return finish(root);
+    }
+
+    /**
+     * A tree in which every node only has a right child, so the smallest key is the root.
+     */
+    static BST rightVine(int n)
+    {
+        checkSize(n);
+        BSTNode root = new BSTNode(0);
+        BSTNode bottom = root;
+        for (int key = 1; key < n; key++)
+        {
+            BSTNode x = new BSTNode(key);
+            link(bottom, x, false);
+            bottom = x;
+        }
+        return finish(root);
+    }
+
+    /**
+     * A chain that alternates between right and left children: the smallest key, then the largest,
+     * then the second smallest and so on, closing in on the middle.
+     */
+    static BST zigZag(int n)
+    {
+        checkSize(n);
+        int lo = 0;
+        int hi = n - 1;
+        BSTNode root = new BSTNode(lo++);
+        BSTNode bottom = root;
+        boolean takeLargest = true;
+        while (lo <= hi)
+        {
+            BSTNode x = new BSTNode(takeLargest ? hi-- : lo++);
+
+            // after the smallest key everything else is larger, and vice versa
+            link(bottom, x, !takeLargest);
+            bottom = x;
+            takeLargest = !takeLargest;
+        }
+        return finish(root);
+    }
+
+    /**
+     * A tree in which about the given fraction of the nodes lie in subtrees identical to the
+     * corresponding subtrees of the almost complete tree on the same keys.
+     * <p>
+     * The subtrees of the almost complete tree about halfway down are the candidates, and each
+     * is kept whole with probability fraction. The kept subtrees and the remaining keys are
+     * then arranged as a random binary search tree, with the kept subtrees hanging as leaves.
+     * The arrangement may happen to recreate more of the almost complete tree, so the fraction
+     * is a lower bound on average.
+     */
+    static BST withIdenticalSubtrees(int n, double fraction, SplittableRandom random)
+    {
+        checkSize(n);
+        if (fraction < 0 || fraction > 1) throw new IllegalArgumentException("fraction must be between 0 and 1");
+
+        // Each item is either a single key, or a block of keys [key, end) to be built as an
+        // almost complete subtree, in which case end is set. No two blocks are next to each
+        // other, since two subtrees always have a common ancestor between them.
+        final int[] keys = keys(n);
+        final Items items = new Items(n);
+        items.collect(0, n, 0, BalanceViaRotation.levels(n) / 2, fraction, random);
+
+        // Build the random tree over the items top-down, keeping the ranges of items still to
+        // be built on a stack along with the node to hang them from.
+        BSTNode root = null;
+        int[] from = new int[16];
+        int[] to = new int[16];
+        BSTNode[] parents = new BSTNode[16];
+        boolean[] onLeft = new boolean[16];
+        int depth = 0;
+        from[depth] = 0;
+        to[depth] = items.count;
+        depth++;
+        while (depth > 0)
+        {
+            depth--;
+            final int lo = from[depth];
+            final int hi = to[depth];
+            final BSTNode parent = parents[depth];
+            final boolean left = onLeft[depth];
+            if (lo == hi) continue;
+
+            BSTNode x;
+            int i = -1;
+            if (hi - lo == 1 && items.isBlock(lo))
+            {
+                x = BalanceViaRotation.almostCompleteHelper(parent, keys, items.key[lo], items.end[lo]);
+            }
+            else
+            {
+                // a block can't have children, so settle for its neighbour, which is a single key
+                i = lo + random.nextInt(hi - lo);
+                if (items.isBlock(i)) i = i + 1 < hi ? i + 1 : i - 1;
+                x = new BSTNode(items.key[i]);
+            }
+
+            if (parent == null) root = x;
+            else link(parent, x, left);
+            if (i == -1) continue;
+
+            if (depth + 2 > from.length)
+            {
+                from = Arrays.copyOf(from, 2 * from.length);
+                to = Arrays.copyOf(to, 2 * to.length);
+                parents = Arrays.copyOf(parents, 2 * parents.length);
+                onLeft = Arrays.copyOf(onLeft, 2 * onLeft.length);
+            }
+            from[depth] = lo;
+            to[depth] = i;
+            parents[depth] = x;
+            onLeft[depth] = true;
+            depth++;
+            from[depth] = i + 1;
+            to[depth] = hi;
+            parents[depth] = x;
+            onLeft[depth] = false;
+            depth++;
+        }
+        return finish(root);
+    }
+
+    /**
+     * The items that withIdenticalSubtrees arranges, in ascending order.
+     */
+    private static final class Items
+    {
+        final int[] key;
+        final int[] end;
+        int count = 0;
+
+        Items(int n)
+        {
+            key = new int[n];
+            end = new int[n];
+        }
+
+        boolean isBlock(int i)
+        {
+            return end[i] != -1;
+        }
+
+        /**
+         * Walk the almost complete tree on the keys [lo, hi) in order, keeping each subtree at
+         * blockDepth whole with probability fraction. The recursion is only as deep as blockDepth.
+         */
+        void collect(int lo, int hi, int depth, int blockDepth, double fraction, SplittableRandom random)
+        {
+            if (lo == hi) return;
+            if (depth == blockDepth)
+            {
+                if (random.nextDouble() < fraction)
+                {
+                    add(lo, hi);
+                }
+                else
+                {
+                    for (int k = lo; k < hi; k++) add(k, -1);
+                }
+                return;
+            }
+
+            final int root = lo + BalanceViaRotation.computeRootT(hi - lo);
+            collect(lo, root, depth + 1, blockDepth, fraction, random);
+            add(root, -1);
+            collect(root + 1, hi, depth + 1, blockDepth, fraction, random);
+        }
+
+        private void add(int k, int e)
+        {
+            key[count] = k;
+            end[count] = e;
+            count++;
+        }
+    }
+
+    /**
+     * Return the keys 0 to n-1 in ascending order.
+     */
+    private static int[] keys(int n)
+    {
+        return IntStream.range(0, n).toArray();
+    }
+
+    private static void checkSize(int n)
+    {
+        if (n < 1) throw new IllegalArgumentException("n must be positive");
+    }
+
+    private static void link(BSTNode parent, BSTNode child, boolean left)
+    {
+        if (left) parent.left = child;
+        else parent.right = child;
+        child.parent = parent;
+    }
+
+    /**
+     * Fill in the subtree sizes bottom-up and wrap the tree up.
+     */
+    private static BST finish(BSTNode root)
+    {
+        root.postOrder(BSTNode::updateSize);
+        return new BST(root);
+    }
+}
@@ -1,15 +1,36 @@
 import net.jqwik.api.Assume;
+import net.jqwik.api.Example;
 import net.jqwik.api.ForAll;
 import net.jqwik.api.Property;
 import net.jqwik.api.constraints.*;
 import org.assertj.core.api.Assertions;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import javax.management.ObjectName;
 
 public class BinaryTreeTest
 {
@@ -60,6 +81,63 @@ public class BinaryTreeTest
         }
     }
 
+    @Property
+    void indexedSearchFindsKeysAcrossRotationsAndInserts(@ForAll @Size(min = 2) List<@Unique Integer> keys,
+                                                         @ForAll boolean contiguous)
+    {
+        if (contiguous)
+        {
+            // exercise the dense array as well as the hash table
+            keys = IntStream.range(0, keys.size()).boxed().collect(Collectors.toList());
+            Collections.shuffle(keys);
+        }
+        int last = keys.remove(keys.size() - 1);
+
+        BST t = new BST(keys);
+        t.indexKeys();
+        BalanceViaRotation.randomlyRotate(t);
+        t.insert(last);
+        keys.add(last);
+
+        for (int k : keys)
+        {
+            Assertions.assertThat(t.search(k).orElseThrow()).isSameAs(t.root.search(k).orElseThrow());
+        }
+
+        // the key after the largest one is missing, unless it wrapped around to a key that is present
+        int next = Collections.max(keys) + 1;
+        Assertions.assertThat(t.search(next).isPresent()).isEqualTo(keys.contains(next));
+    }
+
+    @Property
+    void indexedBSTSearchFindsKeysAcrossRotationsAndInserts(@ForAll @Size(min = 2) List<@Unique Integer> keys,
+                                                            @ForAll boolean contiguous)
+    {
+        if (contiguous)
+        {
+            keys = IntStream.range(0, keys.size()).boxed().collect(Collectors.toList());
+            Collections.shuffle(keys);
+        }
+        int last = keys.remove(keys.size() - 1);
+
+        IndexedBST t = new IndexedBST(keys);
+        t.indexKeys();
+        BalanceViaRotation.randomlyRotate(t);
+        t.insert(last);
+        keys.add(last);
+
+        // a subtree view doesn't share the index, so it searches down from the root
+        IndexedBST unindexed = t.subtree(t.root());
+        for (int k : keys)
+        {
+            Assertions.assertThat(t.search(k)).isEqualTo(unindexed.search(k));
+            Assertions.assertThat(t.key(t.search(k).orElseThrow())).isEqualTo(k);
+        }
+
+        int next = Collections.max(keys) + 1;
+        Assertions.assertThat(t.search(next).isPresent()).isEqualTo(keys.contains(next));
+    }
+
     @Property
     void leftRotatingRootPreservesInorderTraversalProperty(@ForAll @Size(min = 2) List<@Unique Integer> keys)
     {
@@ -113,6 +191,23 @@ public class BinaryTreeTest
         Assertions.assertThat(treeBefore).isEqualTo(treeAfter);
     }
 
+    @Property
+    void equalsTrustsTheHashOnlyWhenAWalkWouldAgree(@ForAll @Size(min = 1, max = 100) List<@Unique Integer> keys,
+                                                    @ForAll @IntRange(max = 3) int rotations,
+                                                    @ForAll Random random)
+    {
+        BST s = new BST(keys);
+        BST t = new BST(keys);
+        for (int i = 0; i < rotations; i++)
+        {
+            BSTNode x = t.select(random.nextInt(keys.size())).orElseThrow();
+            if (x.left != null) t.rotateRight(x);
+            else if (x.right != null) t.rotateLeft(x);
+        }
+
+        Assertions.assertThat(s.root.equals(t.root)).isEqualTo(s.root.sameShapeAndKeys(t.root));
+    }
+
     @Property
     void rotateNodeToRootMovesNodeToTheRoot(@ForAll @Size(min = 2) List<@Unique Integer> keys,
                                             @ForAll @Positive int x)
@@ -145,6 +240,74 @@ public class BinaryTreeTest
         Assertions.assertThat(t.inOrderKeys()).isEqualTo(tOld.inOrderKeys());
     }
 
+    @Property
+    void invertingTheForearmHistoryRestoresTheTree(@ForAll @Size(min = 2) List<@Unique Integer> keys)
+    {
+        BST original = new BST(keys);
+        BST t = new BST(keys);
+
+        RotationLog history = BalanceViaRotation.makeForearms(t);
+        BalanceViaRotation.applyInvertedRotations(t, history);
+
+        Assertions.assertThat(t).isEqualTo(original);
+    }
+
+    @Property
+    void indexedBSTFoldsAndUnfoldsLikeBST(@ForAll @Size(min = 2, max = 300) List<@Unique Integer> keys)
+    {
+        BST s = new BST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+        IndexedBST indexed = IndexedBST.copyOf(s);
+        indexed.indexKeys();
+        Set<Integer> ignored = BalanceViaRotation.findMaximalIdenticalSubtrees(s, t);
+        Assume.that(!ignored.contains(t.root().key));
+
+        int rootRank = BalanceViaRotation.computeRootT(keys.size());
+        Assertions.assertThat(BalanceViaRotation.rotateNodeToRoot(indexed, rootRank))
+                .isEqualTo(BalanceViaRotation.rotateNodeToRoot(s, rootRank));
+
+        RotationLog history = BalanceViaRotation.makeForearms(s, ignored);
+        RotationLog indexedHistory = BalanceViaRotation.makeForearms(indexed, ignored);
+        Assertions.assertThat(RotationTree.identical(indexed, s)).isTrue();
+        Assertions.assertThat(indexedHistory.size()).isEqualTo(history.size());
+        for (int i = 0; i < history.size(); i++)
+        {
+            Assertions.assertThat(indexedHistory.rank(i)).isEqualTo(history.rank(i));
+            Assertions.assertThat(indexedHistory.rotation(i)).isEqualTo(history.rotation(i));
+        }
+
+        Assertions.assertThat(BalanceViaRotation.unfoldForearms(indexed, ignored))
+                .isEqualTo(BalanceViaRotation.unfoldForearms(s, ignored));
+        Assertions.assertThat(RotationTree.identical(indexed, t)).isTrue();
+    }
+
+    @Property
+    void foldingBothSidesAtOnceMatchesFoldingThemInTurn(@ForAll @Size(min = 2, max = 300) List<@Unique Integer> keys)
+    {
+        BST sequential = new BST(keys);
+        BST parallel = new BST(keys);
+        parallel.indexKeys();
+
+        // put the root of the almost complete tree in place, as A1 does
+        int rootRank = BalanceViaRotation.computeRootT(keys.size());
+        BalanceViaRotation.rotateNodeToRoot(sequential, rootRank);
+        BalanceViaRotation.rotateNodeToRoot(parallel, rootRank);
+
+        RotationLog sequentialHistory = BalanceViaRotation.makeForearms(sequential, Set.of());
+        RotationLog parallelHistory = BalanceViaRotation.makeForearms(parallel, Set.of(), ForkJoinPool.commonPool());
+        Assertions.assertThat(parallel).isEqualTo(sequential);
+        Assertions.assertThat(parallelHistory.size()).isEqualTo(sequentialHistory.size());
+        for (int i = 0; i < sequentialHistory.size(); i++)
+        {
+            Assertions.assertThat(parallelHistory.rank(i)).isEqualTo(sequentialHistory.rank(i));
+            Assertions.assertThat(parallelHistory.rotation(i)).isEqualTo(sequentialHistory.rotation(i));
+        }
+
+        // unfolding both sides at once gives the almost complete tree
+        BalanceViaRotation.unfoldForearms(parallel, Set.of(), ForkJoinPool.commonPool());
+        Assertions.assertThat(parallel).isEqualTo(BalanceViaRotation.makeAlmostCompleteBST(keys));
+    }
+
     @Property
     void makeForearmsHasCorrectHeightAndSize(@ForAll @Size(min = 2) List<@Unique Integer> keys)
     {
@@ -184,6 +347,25 @@ public class BinaryTreeTest
     }
 
 
+    @Property
+    void cachedStructuralHashesSurviveRotations(@ForAll @Size(min = 2) List<@Unique Integer> keys)
+    {
+        BST t = new BST(keys);
+        t.root.structuralHash();  // fill the caches before rotating
+        BalanceViaRotation.randomlyRotate(t);
+
+        // Inserting the keys in reverse post-order puts every node in before its descendants,
+        // which rebuilds a fresh tree with exactly the same shape.
+        List<Integer> postOrder = new ArrayList<>();
+        t.postOrder(n -> postOrder.add(n.key));
+        Collections.reverse(postOrder);
+        BST fresh = new BST(postOrder);
+
+        t.postOrder(n -> Assertions.assertThat(n.structuralHash())
+                .isEqualTo(fresh.search(n.key).orElseThrow().structuralHash()));
+        Assertions.assertThat(t).isEqualTo(fresh);
+    }
+
     @Property
     void makeAlmostCompleteBinaryTreePreservesInOrderProperty(@ForAll @NotEmpty List<@Unique Integer> keys)
     {
@@ -257,6 +439,28 @@ public class BinaryTreeTest
         Assertions.assertThat(t.select(badRank)).isEmpty();
     }
 
+    @Property
+    void binaryTreeRankIsInverseOfSelect(@ForAll @NotEmpty List<@Unique Integer> keys)
+    {
+        BST t = new BST(keys);
+        for (int r = 0; r < keys.size(); r++)
+        {
+            int k = t.select(r).orElseThrow().key;
+            Assertions.assertThat(t.rank(k)).hasValue(r);
+        }
+    }
+
+    @Property
+    void rotationsMaintainSubtreeSizes(@ForAll @Size(min = 2) List<@Unique Integer> keys)
+    {
+        BST t = new BST(keys);
+        BalanceViaRotation.makeForearms(t);
+        BalanceViaRotation.rotateNodeToRoot(t, keys.size() / 2);
+
+        // every cached size should agree with the number of nodes actually below it
+        t.postOrder(n -> Assertions.assertThat(n.size()).isEqualTo(n.inOrderNodes().size()));
+    }
+
     @Property
     void contrivedBinaryTreeHeightTest(@ForAll @NotEmpty List<@Unique Integer> keys)
     {
@@ -269,6 +473,24 @@ public class BinaryTreeTest
         Assertions.assertThat(t.height()).isEqualTo(keys.size() - 1);
     }
 
+    @Example
+    void treeWalksDoNotOverflowTheStackOnLongChains()
+    {
+        // inserting keys in ascending order gives a right-going chain deeper than the default stack allows
+        List<Integer> keys = IntStream.range(0, 20_000).boxed().collect(Collectors.toList());
+        BST chain = new BST(keys);
+        BST sameChain = new BST(keys);
+
+        Assertions.assertThat(chain.height()).isEqualTo(keys.size() - 1);
+        Assertions.assertThat(chain.inOrderKeys()).isEqualTo(keys);
+        Assertions.assertThat(chain).isEqualTo(sameChain);
+        Assertions.assertThat(chain.hashCode()).isEqualTo(sameChain.hashCode());
+
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+        BalanceViaRotation.A1(chain, t);
+        Assertions.assertThat(chain).isEqualTo(t);
+    }
+
     @Property
     void algorithm1TransformsSToTInExpectedNumberOfRotations(@ForAll @Size(min = 3) List<@Unique Integer> keys)
     {
@@ -311,6 +533,413 @@ public class BinaryTreeTest
         Assertions.assertThat(stat.rotationsActual()).isLessThanOrEqualTo(stat.rotationsExpected());
     }
 
+    @Property
+    void forearmUnfoldingReplaysTheRecordedHistoryBackwards(@ForAll @IntRange(min = 1, max = 300) int n, @ForAll Random random)
+    {
+        // ignore a random handful of ranks, as A2 would
+        BitSet ignoredRanks = new BitSet(n);
+        Set<Integer> ignoredKeys = new HashSet<>();
+        for (int i = 0; i < n / 10; i++)
+        {
+            int rank = random.nextInt(n);
+            ignoredRanks.set(rank);
+            ignoredKeys.add(rank);
+        }
+
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(IntStream.range(0, n).toArray());
+        PrimitiveIterator.OfInt recorded = BalanceViaRotation.makeForearms(t, ignoredKeys).newestFirst();
+        PrimitiveIterator.OfInt generated = new ForearmUnfolding(n, ignoredRanks);
+        while (recorded.hasNext())
+        {
+            Assertions.assertThat(generated.hasNext()).isTrue();
+            Assertions.assertThat(generated.nextInt()).isEqualTo(recorded.nextInt());
+        }
+        Assertions.assertThat(generated.hasNext()).isFalse();
+    }
+
+    @Property
+    void cachedForearmPlansUnfoldTreesWithDifferentKeysOfTheSameSize(@ForAll @Size(min = 1, max = 300) List<@Unique Integer> keys, @ForAll boolean parallel)
+    {
+        // the cached plan is just what the generator would produce
+        final int n = keys.size();
+        List<Integer> generated = new ArrayList<>();
+        new ForearmUnfolding(n, new BitSet()).forEachRemaining((int entry) -> generated.add(entry));
+        Assertions.assertThat(BalanceViaRotation.forearmPlans.get(n)).containsExactly(generated.stream().mapToInt(x -> x).toArray());
+
+        // and replaying it, whole or split between the sides of the root, gives T whatever the keys
+        List<Integer> otherKeys = IntStream.range(0, n).map(k -> 3 * k - n).boxed().collect(Collectors.toList());
+        Collections.shuffle(otherKeys);
+        for (List<Integer> ks : List.of(keys, otherKeys))
+        {
+            // as in A1, first move T's root to the root of S
+            BST s = new BST(ks);
+            BalanceViaRotation.rotateNodeToRoot(s, BalanceViaRotation.computeRootT(n));
+            BalanceViaRotation.makeForearms(s, Set.of());
+            BalanceViaRotation.unfoldForearms(s, Set.of(), parallel ? ForkJoinPool.commonPool() : null);
+            Assertions.assertThat(s).isEqualTo(BalanceViaRotation.makeAlmostCompleteBST(ks));
+        }
+    }
+
+    @Property
+    void parallelBuilderMakesTheSameAlmostCompleteTree(@ForAll @IntRange(min = 1, max = 2000) int n, @ForAll @IntRange(min = 1, max = 64) int cutoff)
+    {
+        int[] keys = IntStream.range(0, n).map(k -> 3 * k - n).toArray();
+        BST parallel = BalanceViaRotation.makeAlmostCompleteBST(keys, ForkJoinPool.commonPool(), cutoff);
+
+        Assertions.assertThat(parallel).isEqualTo(BalanceViaRotation.makeAlmostCompleteBST(keys));
+        Assertions.assertThat(parallel.inOrderNodes()).allMatch(x -> x.size == BSTNode.sizeOf(x.left) + BSTNode.sizeOf(x.right) + 1);
+        Assertions.assertThat(parallel.inOrderNodes()).allMatch(x -> x.left == null || x.left.parent == x);
+        Assertions.assertThat(parallel.inOrderNodes()).allMatch(x -> x.right == null || x.right.parent == x);
+    }
+
+    @Property
+    void parallelSearchFindsTheSameMaximalIdenticalSubtrees(@ForAll @Size(min = 1, max = 300) List<@Unique Integer> keys, @ForAll @IntRange(min = 1, max = 32) int cutoff)
+    {
+        BST s = new BST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+        t.indexKeys();
+
+        Assertions.assertThat(BalanceViaRotation.findMaximalIdenticalSubtrees(s, t, ForkJoinPool.commonPool(), cutoff))
+                .isEqualTo(BalanceViaRotation.findMaximalIdenticalSubtrees(s, t));
+    }
+
+    @Property
+    void randomRotationsDependOnlyOnTheSeed(@ForAll @Size(min = 1, max = 300) List<@Unique Integer> keys, @ForAll long seed, @ForAll @IntRange(min = 1, max = 32) int cutoff)
+    {
+        BST a = new BST(keys);
+        BST b = new BST(keys);
+        BalanceViaRotation.randomlyRotate(a, new SplittableRandom(seed));
+        BalanceViaRotation.randomlyRotate(b, new SplittableRandom(seed));
+        Assertions.assertThat(a).isEqualTo(b);
+        Assertions.assertThat(a.inOrderKeys()).isEqualTo(new BST(keys).inOrderKeys());
+
+        // splitting the generator per subtree gives the same result with or without a pool
+        BST c = new BST(keys);
+        BST d = new BST(keys);
+        BalanceViaRotation.randomlyRotate(c, new SplittableRandom(seed), null, cutoff);
+        BalanceViaRotation.randomlyRotate(d, new SplittableRandom(seed), ForkJoinPool.commonPool(), cutoff);
+        Assertions.assertThat(d).isEqualTo(c);
+        Assertions.assertThat(d.inOrderNodes()).allMatch(x -> x.size == BSTNode.sizeOf(x.left) + BSTNode.sizeOf(x.right) + 1);
+    }
+
+    @Property(tries = 50)
+    void phaseRotationsAddUpToTheTotal(@ForAll BalanceViaRotation.Algorithm algorithm, @ForAll TreeGenerators.Source source,
+                                       @ForAll @IntRange(min = 1, max = 300) int n, @ForAll long seed)
+    {
+        var result = ExperimentRunner.run(new ExperimentRunner.Trial(algorithm, n, source, 0, seed));
+        PhaseStats phases = result.statistic().phases();
+
+        Assertions.assertThat(phases.totalRotations()).isEqualTo(result.statistic().rotationsActual());
+        Assertions.assertThat(phases.nanos(PhaseStats.Phase.SETUP)).isNotNegative();
+    }
+
+    @Property
+    void lookupsCountTheNodesSearchesVisit(@ForAll @Size(min = 2, max = 200) List<@Unique Integer> keys)
+    {
+        int rootRank = BalanceViaRotation.computeRootT(keys.size());
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+
+        // A1 finds rootT twice, each time walking down to it from the root
+        BST s = new BST(keys);
+        int depth = s.depth(s.root.select(rootRank).orElseThrow());
+        PhaseStats phases = BalanceViaRotation.A1(s, t).phases();
+        Assertions.assertThat(phases.lookups(PhaseStats.Phase.ROOT)).isEqualTo(2L * (depth + 1));
+        PhaseStats indexedPhases = BalanceViaRotation.A1(new IndexedBST(keys), IndexedBST.copyOf(t)).phases();
+        Assertions.assertThat(indexedPhases.lookups(PhaseStats.Phase.ROOT)).isEqualTo(2L * (depth + 1));
+
+        // Without an index each search in the replay walks down to the node it rotates, which the
+        // observer then sees one level further down.
+        BST unindexed = new BST(keys);
+        BalanceViaRotation.rotateNodeToRoot(unindexed, rootRank);
+        BalanceViaRotation.makeForearms(unindexed);
+        long[] expected = {unindexed.nodesVisited()};
+        unindexed.setRotationObserver((tree, pivot, direction) -> expected[0] += tree.depth(pivot));
+        BalanceViaRotation.unfoldForearms(unindexed, Set.of());
+        Assertions.assertThat(unindexed.nodesVisited()).isEqualTo(expected[0]);
+    }
+
+    @Property(tries = 100)
+    void rotationObserverSeesEveryRotation(@ForAll BalanceViaRotation.Algorithm algorithm, @ForAll TreeGenerators.Source source,
+                                           @ForAll @IntRange(min = 1, max = 300) int n, @ForAll long seed)
+    {
+        BST S = source.generate(n, new SplittableRandom(seed));
+        BST T = BalanceViaRotation.makeAlmostCompleteBST(IntStream.range(0, n).toArray());
+        int[] rotations = new int[1];
+        S.setRotationObserver((tree, pivot, direction) -> rotations[0]++);
+
+        BalanceViaRotation.Statistic stat = switch (algorithm)
+        {
+            case A1 -> BalanceViaRotation.A1(S, T);
+            case A2 -> BalanceViaRotation.A2(S, T);
+            case A3 -> BalanceViaRotation.A3(S, T);
+        };
+        Assertions.assertThat(rotations[0]).isEqualTo(stat.rotationsActual());
+    }
+
+    @Property
+    void rotationObserverIsToldThePivotDirectionAndDepth(@ForAll @NotEmpty Set<Integer> keys, @ForAll Random random)
+    {
+        BST t = new BST(keys);
+        List<BSTNode> nodes = t.inOrderNodes();
+        List<String> expected = new ArrayList<>();
+        List<String> observed = new ArrayList<>();
+        t.setRotationObserver((tree, pivot, direction) -> observed.add(pivot.key + " " + direction + " " + (tree.depth(pivot) - 1)));
+
+        for (int i = 0; i < 20; i++)
+        {
+            BSTNode x = nodes.get(random.nextInt(nodes.size()));
+            int depth = 0;
+            for (BSTNode y = x; y.parent != null; y = y.parent) depth++;
+            if (x.right != null)
+            {
+                expected.add(x.key + " Left " + depth);
+                t.rotateLeft(x);
+            }
+            else if (x.left != null)
+            {
+                expected.add(x.key + " Right " + depth);
+                t.rotateRight(x);
+            }
+        }
+        Assertions.assertThat(observed).isEqualTo(expected);
+
+        // and once it's removed we hear nothing more
+        t.setRotationObserver(null);
+        if (t.root().right != null) t.rotateLeft(t.root());
+        else if (t.root().left != null) t.rotateRight(t.root());
+        Assertions.assertThat(observed).hasSize(expected.size());
+    }
+
+    @Property
+    void viewsReportDepthInTheWholeTree(@ForAll @Size(min = 2) Set<Integer> keys, @ForAll Random random)
+    {
+        BST t = new BST(keys);
+        List<BSTNode> nodes = t.inOrderNodes();
+        Map<BSTNode, Integer> depths = new IdentityHashMap<>();
+        for (BSTNode x : nodes) depths.put(x, t.depth(x));
+        BSTNode y = nodes.get(random.nextInt(nodes.size()));
+
+        BST view = t.subtree(y);
+        view.inOrder(x -> Assertions.assertThat(view.depth(x)).isEqualTo(depths.get(x)));
+
+        BSTNode parent = y.parent;
+        boolean left = parent != null && parent.left == y;
+        BST detached = t.detach(y);
+        detached.inOrder(x -> Assertions.assertThat(detached.depth(x)).isEqualTo(depths.get(x)));
+
+        // a rotation at the root of the detached view happens as deep as y was in the whole tree
+        List<Integer> observed = new ArrayList<>();
+        detached.setRotationObserver((tree, pivot, direction) -> observed.add(tree.depth(pivot) - 1));
+        if (y.right != null) detached.rotateLeft(y);
+        else if (y.left != null) detached.rotateRight(y);
+        t.reattach(parent, left, detached);
+        Assertions.assertThat(observed).allMatch(d -> d.equals(depths.get(y)));
+    }
+
+    @Example
+    void observedRotationsDeepInAVineTakeConstantTime()
+    {
+        // Rotating the bottom edge of a long vine back and forth. If observing a rotation walked
+        // up to the root this would take some 10^10 steps rather than a few milliseconds.
+        final int n = 100_000;
+        BST t = TreeGenerators.leftVine(n);
+        t.setRotationObserver((tree, pivot, direction) -> { });
+        BSTNode bottom = t.root();
+        while (bottom.left.left != null) bottom = bottom.left;
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < n; i++)
+        {
+            t.rotateLeft(t.rotateRight(bottom));
+        }
+        Assertions.assertThat(System.nanoTime() - start).isLessThan(5_000_000_000L);
+        Assertions.assertThat(t.inOrderKeys()).isEqualTo(IntStream.range(0, n).boxed().collect(Collectors.toList()));
+    }
+
+    @Example
+    void flightRecorderSeesEveryPhaseAndSampledRotations() throws IOException
+    {
+        Path file = Files.createTempFile("balancing", ".jfr");
+        try (Recording recording = new Recording())
+        {
+            recording.enable("balancing.Phase");
+            recording.enable("balancing.Rotation");
+            recording.start();
+
+            BST S = TreeGenerators.uniform(500, new SplittableRandom(1));
+            BST T = BalanceViaRotation.makeAlmostCompleteBST(IntStream.range(0, 500).toArray());
+            S.setRotationObserver(BalancingEvents.sampledRotations(1));
+            BalanceViaRotation.Statistic stat = BalanceViaRotation.A2(S, T);
+
+            // Unsampled rotations mustn't pay for the depth: this is instant unless each one
+            // walks up a vine of 100,000 nodes.
+            BST vine = TreeGenerators.leftVine(100_000);
+            vine.setRotationObserver(BalancingEvents.sampledRotations(Integer.MAX_VALUE));
+            BSTNode bottom = vine.root();
+            while (bottom.left.left != null) bottom = bottom.left;
+            final long start = System.nanoTime();
+            for (int i = 0; i < 100_000; i++)
+            {
+                vine.rotateLeft(vine.rotateRight(bottom));
+            }
+            Assertions.assertThat(System.nanoTime() - start).isLessThan(5_000_000_000L);
+
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            List<RecordedEvent> phases = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("balancing.Phase"))
+                    .collect(Collectors.toList());
+            // the vine's rotations are all far deeper than anything in S
+            long rotations = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("balancing.Rotation"))
+                    .filter(e -> e.getInt("depth") < 500)
+                    .count();
+
+            Assertions.assertThat(phases).allSatisfy(e -> Assertions.assertThat(e.getInt("n")).isEqualTo(500));
+            Assertions.assertThat(phases.stream().mapToLong(e -> e.getLong("rotations")).sum()).isEqualTo(stat.rotationsActual());
+            Assertions.assertThat(rotations).isEqualTo(stat.rotationsActual());
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Example
+    void metricsCountOnlyOutsideCalls() throws Exception
+    {
+        BalancingMetrics.register();
+        BalancingMetrics metrics = BalancingMetrics.INSTANCE;
+        long rotations = metrics.getRotations();
+        long callsA1 = metrics.getA1Calls();
+        long callsA2 = metrics.getA2Calls();
+        long callsA3 = metrics.getA3Calls();
+
+        BST S = TreeGenerators.uniform(700, new SplittableRandom(3));
+        BST T = BalanceViaRotation.makeAlmostCompleteBST(IntStream.range(0, 700).toArray());
+        BalanceViaRotation.Statistic stat = BalanceViaRotation.A3(S, T);
+
+        // A3 runs A1 and A2 on the way, but only A3 was called from outside
+        Assertions.assertThat(metrics.getRotations() - rotations).isEqualTo(stat.rotationsActual());
+        Assertions.assertThat(metrics.getA1Calls()).isEqualTo(callsA1);
+        Assertions.assertThat(metrics.getA2Calls()).isEqualTo(callsA2);
+        Assertions.assertThat(metrics.getA3Calls()).isEqualTo(callsA3 + 1);
+        Assertions.assertThat(metrics.getTreesInFlight()).isZero();
+        Assertions.assertThat(metrics.getLargestN()).isGreaterThanOrEqualTo(700);
+
+        Object viaJmx = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(BalancingMetrics.OBJECT_NAME), "A3Calls");
+        Assertions.assertThat(viaJmx).isEqualTo(metrics.getA3Calls());
+    }
+
+    @Property
+    void latencyHistogramBucketsHoldTheirValues(@ForAll @LongRange(min = 0, max = Long.MAX_VALUE) long v)
+    {
+        int bucket = BalancingMetrics.LatencyHistogram.bucket(v);
+        Assertions.assertThat(BalancingMetrics.LatencyHistogram.top(bucket)).isGreaterThanOrEqualTo(v);
+        if (bucket > 0)
+        {
+            Assertions.assertThat(BalancingMetrics.LatencyHistogram.top(bucket - 1)).isLessThan(v);
+        }
+    }
+
+    @Property
+    void everyValidationLevelTellsMatchingKeysFromDifferentOnes(@ForAll @NotEmpty Set<Integer> keys, @ForAll int extra)
+    {
+        Assume.that(!keys.contains(extra));
+        BST S = new BST(keys);
+        BST T = BalanceViaRotation.makeAlmostCompleteBST(keys);
+        IndexedBST indexedT = IndexedBST.copyOf(T);
+
+        // built by inserting, by linking up nodes, and in a node store: all agree
+        Assertions.assertThat(S.keyFingerprint()).isEqualTo(T.keyFingerprint()).isEqualTo(indexedT.keyFingerprint());
+        for (BalanceViaRotation.Validation level : BalanceViaRotation.Validation.values())
+        {
+            BalanceViaRotation.assertSanity(S, T, level);
+            BalanceViaRotation.assertSanity(S, indexedT, level);
+        }
+
+        // one more key, inserted after the fingerprint was worked out
+        S.insert(extra);
+        Assertions.assertThat(S.keyFingerprint()).isEqualTo(new BST(S.inOrderKeys()).keyFingerprint());
+        BalanceViaRotation.assertSanity(S, T, BalanceViaRotation.Validation.NONE);
+        for (BalanceViaRotation.Validation level : List.of(BalanceViaRotation.Validation.FINGERPRINT, BalanceViaRotation.Validation.FULL))
+        {
+            Assertions.assertThatIllegalArgumentException()
+                    .isThrownBy(() -> BalanceViaRotation.assertSanity(S, T, level))
+                    .withMessageContaining("different keysets");
+        }
+    }
+
+    @Example
+    void resultWriterWritesOneRecordPerTrial()
+    {
+        var trials = ExperimentRunner.trials(List.of(10, 20), List.of(BalanceViaRotation.Algorithm.values()), 2, 7);
+        StringWriter csv = new StringWriter();
+        StringWriter json = new StringWriter();
+        try (ResultWriter csvSink = new ResultWriter(csv, ResultWriter.Format.CSV);
+             ResultWriter jsonSink = new ResultWriter(json, ResultWriter.Format.JSON_LINES))
+        {
+            ExperimentRunner.run(trials, 2, r ->
+            {
+                csvSink.accept(r);
+                jsonSink.accept(r);
+            });
+        }
+
+        String[] rows = csv.toString().split("\n");
+        Assertions.assertThat(rows).hasSize(trials.size() + 1);
+        int columns = rows[0].split(",").length;
+        Assertions.assertThat(rows).allMatch(row -> row.split(",").length == columns);
+        Assertions.assertThat(rows[1]).startsWith("A1,10,PERTURBED,0," + trials.get(0).seed() + ",");
+
+        String[] records = json.toString().split("\n");
+        Assertions.assertThat(records).hasSize(trials.size());
+        Assertions.assertThat(records).allMatch(r -> r.startsWith("{\"algorithm\":") && r.endsWith("}}"));
+    }
+
+    @Property
+    void generatedTreesAreValidSourceTrees(@ForAll TreeGenerators.Source source, @ForAll @IntRange(min = 1, max = 500) int n, @ForAll long seed)
+    {
+        BST s = source.generate(n, new SplittableRandom(seed));
+
+        Assertions.assertThat(s.inOrderKeys()).isEqualTo(IntStream.range(0, n).boxed().collect(Collectors.toList()));
+        Assertions.assertThat(s.inOrderNodes()).allMatch(x -> x.size == BSTNode.sizeOf(x.left) + BSTNode.sizeOf(x.right) + 1);
+        Assertions.assertThat(s.inOrderNodes()).allMatch(x -> (x.left == null || x.left.parent == x) && (x.right == null || x.right.parent == x));
+        Assertions.assertThat(s.root.parent).isNull();
+        Assertions.assertThat(source.generate(n, new SplittableRandom(seed))).isEqualTo(s);
+    }
+
+    @Example
+    void generatedChainsHaveTheExpectedShape()
+    {
+        Assertions.assertThat(TreeGenerators.leftVine(100).height()).isEqualTo(99);
+        Assertions.assertThat(TreeGenerators.rightVine(100).root.key).isEqualTo(0);
+        Assertions.assertThat(TreeGenerators.zigZag(100).height()).isEqualTo(99);
+        Assertions.assertThat(TreeGenerators.zigZag(100).root.right.left.key).isEqualTo(1);
+
+        // keeping every candidate subtree leaves only the nodes above them to rearrange
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(IntStream.range(0, 1000).toArray());
+        BST s = TreeGenerators.withIdenticalSubtrees(1000, 1, new SplittableRandom(1));
+        int shared = BalanceViaRotation.findMaximalIdenticalSubtrees(s, t).stream()
+                .mapToInt(k -> s.search(k).orElseThrow().size)
+                .sum();
+        Assertions.assertThat(shared).isGreaterThanOrEqualTo(1000 - 31);
+    }
+
+    @Property(tries = 20)
+    void experimentResultsDependOnlyOnTheSeed(@ForAll long seed, @ForAll @IntRange(min = 1, max = 8) int parallelism)
+    {
+        var trials = ExperimentRunner.trials(List.of(50, 200), List.of(BalanceViaRotation.Algorithm.values()), 3, seed);
+        var sequential = ExperimentRunner.run(trials, 1);
+        var parallel = ExperimentRunner.run(trials, parallelism);
+
+        Assertions.assertThat(parallel).isEqualTo(sequential);
+        Assertions.assertThat(parallel).extracting(ExperimentRunner.Result::trial).isEqualTo(trials);
+    }
+
     @Property
     void algorithm2PreservesTreeStructure(@ForAll @Size(min = 3) List<@Unique Integer> keys)
     {
@@ -327,6 +956,70 @@ public class BinaryTreeTest
         Assertions.assertThat(oldSize).isEqualTo(s.size());
     }
 
+    @Property
+    void parallelAlgorithm3MatchesSequentialAlgorithm3(@ForAll @Size(min = 1, max = 200) List<@Unique Integer> keys)
+    {
+        BST s1 = new BST(keys);
+        BST s2 = new BST(keys);
+        IndexedBST s3 = new IndexedBST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+
+        // a threshold of one sends every subtree to the pool
+        BalanceViaRotation.Statistic sequential = BalanceViaRotation.A3(s1, t);
+        BalanceViaRotation.Statistic parallel = BalanceViaRotation.A3(s2, t, ForkJoinPool.commonPool(), 1);
+        BalanceViaRotation.Statistic indexed = BalanceViaRotation.A3(s3, IndexedBST.copyOf(t), ForkJoinPool.commonPool(), 1);
+
+        Assertions.assertThat(parallel).isEqualTo(sequential);
+        Assertions.assertThat(indexed).isEqualTo(sequential);
+        Assertions.assertThat(s2).isEqualTo(t);
+        Assertions.assertThat(RotationTree.identical(s3, t)).isTrue();
+    }
+
+    @Property
+    void algorithm3TransformsSToT(@ForAll @Size(min = 3) List<@Unique Integer> keys)
+    {
+        BST s = new BST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+        final List<Integer> inOrderBefore = s.inOrderKeys();
+
+        BalanceViaRotation.A3(s, t);
+
+        Assertions.assertThat(s).isEqualTo(t);
+        Assertions.assertThat(s.inOrderKeys()).isEqualTo(inOrderBefore);
+        s.postOrder(n -> Assertions.assertThat(n.size()).isEqualTo(n.inOrderNodes().size()));
+    }
+
+    @Property(tries = 2000)
+    void algorithm3StaysWithinItsUpperBound(@ForAll @Size(min = 1, max = 200) List<@Unique Integer> keys)
+    {
+        BST s = new BST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+
+        BalanceViaRotation.Statistic stat = BalanceViaRotation.A3(s, t);
+        Assertions.assertThat(stat.rotationsActual()).isLessThanOrEqualTo(stat.rotationsExpected());
+    }
+
+    @Example
+    void algorithm3DoesNotBalanceATreeWithTheRightRootTwice()
+    {
+        List<Integer> keys = List.of(3, 0, 1, 2, 4, 5, 6);
+        BST s = new BST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+
+        BalanceViaRotation.Statistic stat = BalanceViaRotation.A3(s, t);
+        Assertions.assertThat(s).isEqualTo(t);
+        Assertions.assertThat(stat.rotationsActual()).isLessThanOrEqualTo(stat.rotationsExpected());
+    }
+
+    @Property
+    void algorithm2LeavesAnAlreadyBalancedTreeAlone(@ForAll @NotEmpty List<@Unique Integer> keys)
+    {
+        BST s = BalanceViaRotation.makeAlmostCompleteBST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+
+        Assertions.assertThat(BalanceViaRotation.A2(s, t).rotationsActual()).isZero();
+    }
+
     @Property
     void assignVertexIntervalsAssignsCorrectVertexIntervals(@ForAll @NotEmpty List<@Unique Integer> keys)
     {
@@ -497,6 +1190,94 @@ public class BinaryTreeTest
         }
     }
 
+    @Property
+    void copyingIntoAStoreThatAlreadyHoldsNodesFindsTheRightRoot(@ForAll @NotEmpty List<@Unique Integer> keys,
+                                                                 @ForAll @IntRange(max = 10) int alreadyThere)
+    {
+        BST t = new BST(keys);
+        NodeStore nodes = new NodeArrays(alreadyThere + keys.size());
+        for (int i = 0; i < alreadyThere; i++) nodes.add(i);
+
+        IndexedBST copy = IndexedBST.copyOf(t, nodes);
+        Assertions.assertThat(RotationTree.identical(t, copy)).isTrue();
+        Assertions.assertThat(copy.size()).isEqualTo(keys.size());
+    }
+
+    @Property
+    void indexedTreeHasSameShapeAsReferenceTree(@ForAll @NotEmpty List<@Unique Integer> keys)
+    {
+        BST t = new BST(keys);
+        IndexedBST indexed = new IndexedBST(keys);
+
+        Assertions.assertThat(RotationTree.identical(t, indexed)).isTrue();
+        Assertions.assertThat(indexed).isEqualTo(IndexedBST.copyOf(t));
+        Assertions.assertThat(indexed.height()).isEqualTo(t.height());
+        Assertions.assertThat(indexed.inOrderKeys()).isEqualTo(t.inOrderKeys());
+        for (int r = 0; r < keys.size(); r++)
+        {
+            int k = indexed.key(indexed.select(r).orElseThrow());
+            Assertions.assertThat(k).isEqualTo(t.select(r).orElseThrow().key);
+            Assertions.assertThat(indexed.key(indexed.search(k).orElseThrow())).isEqualTo(k);
+        }
+    }
+
+    @Property
+    void algorithm1BehavesTheSameOnIndexedTrees(@ForAll @Size(min = 3) List<@Unique Integer> keys)
+    {
+        BST s = new BST(keys);
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+        IndexedBST indexedS = IndexedBST.copyOf(s);
+        IndexedBST indexedT = IndexedBST.copyOf(t);
+
+        BalanceViaRotation.Statistic stat = BalanceViaRotation.A1(s, t);
+        BalanceViaRotation.Statistic indexedStat = BalanceViaRotation.A1(indexedS, indexedT);
+
+        Assertions.assertThat(indexedStat).isEqualTo(stat);
+        Assertions.assertThat(indexedS).isEqualTo(indexedT);
+        Assertions.assertThat(RotationTree.identical(indexedS, s)).isTrue();
+    }
+
+    // every try allocates a 20 MiB chunk of direct memory, so keep the number of tries down
+    @Property(tries = 100)
+    void algorithm1BehavesTheSameOffHeap(@ForAll @Size(min = 3) List<@Unique Integer> keys)
+    {
+        BST s = new BST(keys);
+        int[] sortedKeys = keys.stream().mapToInt(Integer::intValue).sorted().toArray();
+        BST t = BalanceViaRotation.makeAlmostCompleteBST(keys);
+
+        OffHeapNodeStore store = new OffHeapNodeStore(2 * keys.size());
+        try (store)
+        {
+            IndexedBST offHeapS = IndexedBST.copyOf(s, store);
+            IndexedBST offHeapT = IndexedBST.almostComplete(sortedKeys, store);
+            Assertions.assertThat(RotationTree.identical(offHeapT, t)).isTrue();
+
+            BalanceViaRotation.Statistic offHeapStat = BalanceViaRotation.A1(offHeapS, offHeapT);
+            Assertions.assertThat(offHeapStat).isEqualTo(BalanceViaRotation.A1(s, t));
+            Assertions.assertThat(offHeapS).isEqualTo(offHeapT);
+        }
+        Assertions.assertThatIllegalStateException().isThrownBy(() -> store.add(0));
+    }
+
+    @Example
+    void closingAnOffHeapStoreFreesItsMemory()
+    {
+        Assume.that(OffHeapNodeStore.freesOnClose());
+        BufferPoolMXBean direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .findFirst()
+                .orElseThrow();
+
+        OffHeapNodeStore store = new OffHeapNodeStore(1 << 21);
+        IndexedBST.almostComplete(IntStream.range(0, 1000).toArray(), store);
+        long before = direct.getMemoryUsed();
+        store.close();
+        store.close();
+
+        // two 20 MiB chunks, returned without waiting for the collector
+        Assertions.assertThat(before - direct.getMemoryUsed()).isGreaterThanOrEqualTo(40L << 20);
+    }
+
     @Property
     void bstNodeMaximumReturnsNodeWithBiggestKey(@ForAll @NotEmpty Set<Integer> keys)
     {